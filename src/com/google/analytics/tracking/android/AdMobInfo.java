@@ -5,8 +5,8 @@ import java.util.Random;
 
 class AdMobInfo {
 	private static final AdMobInfo INSTANCE = new AdMobInfo();
-	private int mAdHitId;
-	private Random mRandom = new Random();
+	private volatile int mAdHitId;
+	private final Random mRandom = new Random();
 
 	static AdMobInfo getInstance() {
 		return INSTANCE;
@@ -4,7 +4,14 @@ class AnalyticsConstants {
 	static final int MAX_GET_LENGTH = 2036;
 	static final int MAX_POST_LENGTH = 8192;
 	static final int MAX_REQUESTS_PER_DISPATCH = 40;
+	static final int MAX_BATCH_POST_LENGTH = 16384;
+	static final int MAX_HITS_PER_BATCH = 20;
+	static final int MAX_BATCHED_HITS_PER_DISPATCH = 200;
 	static final int MAX_NUM_STORED_HITS = 2000;
+	static final int MAX_WRITE_BEHIND_HITS = 200;
+	static final int HIT_QUEUE_CAPACITY = 1024;
+	static final int STORE_MAINTENANCE_DELETE_BUDGET = 100;
+	static final long STORE_MAINTENANCE_INTERVAL_MS = 1000L;
 	static final String PRODUCT = "GoogleAnalytics";
 	static final String VERSION = "2.0";
 	static final String INSTALL_DATA_FILE = "gaInstallData";
@@ -17,6 +24,7 @@ class AnalyticsConstants {
 	static final long MILLISECONDS_PER_DAY = 86400000L;
 	static final long MILLISECONDS_PER_MONTH = 2592000000L;
 	static final long DATABASE_RECOVERY_TIMEOUT_MS = 3600000L;
+	static final long POOLED_CONNECTION_IDLE_TIMEOUT_MS = 60000L;
 	static final String ANALYTICS_PATH_INSECURE = "http://www.google-analytics.com/collect";
 	static final String ANALYTICS_PATH_SECURE = "https://ssl.google-analytics.com/collect";
 	static final String HIT_URL_MODEL_FIELD = "internalHitUrl";
@@ -1,20 +1,40 @@
 package com.google.analytics.tracking.android;
 
+import com.google.analytics.tracking.android.GAServiceManager.HitPriority;
 import com.google.android.gms.analytics.internal.Command;
 import java.util.Collection;
+import java.util.List;
 import java.util.Map;
 
 abstract interface AnalyticsStore {
 	public abstract void setDispatch(boolean dispatch);
 
+	public abstract void setConnectionReuse(boolean reuse);
+
+	public abstract void setMaxBatchBytes(int maxBatchBytes);
+
 	public abstract void putHit(
 			Map<String, String> wireFormatParams,
 			long hitTimeInMilliseconds, String path,
 			Collection<Command> commands);
 
+	public abstract void putHits(Collection<HitParams> hits);
+
+	public abstract void setGroupCommitWindow(int maxHits, long maxMillis);
+
+	public abstract void setCompactHitEncoding(boolean compact);
+
+	public abstract void setEvictionQuota(HitPriority priority, int maxHits);
+
+	public abstract long getNumHitsEvicted(HitPriority priority);
+
+	public abstract StoreStats getStats();
+
 	public abstract void clearHits(long appId);
 
 	public abstract void dispatch();
 
+	public abstract List<Hit> dispatchHits(List<Hit> hits);
+
 	public abstract void close();
 }
\ No newline at end of file
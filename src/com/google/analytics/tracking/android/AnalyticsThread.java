@@ -1,7 +1,6 @@
 package com.google.analytics.tracking.android;
 
 import java.util.Map;
-import java.util.concurrent.LinkedBlockingQueue;
 
 import com.google.analytics.tracking.android.GoogleAnalytics.AppOptOutCallback;
 
@@ -16,7 +15,9 @@ abstract interface AnalyticsThread {
 
 	public abstract void requestClientId(ClientIdCallback callback);
 
-	public abstract LinkedBlockingQueue<Runnable> getQueue();
+	public abstract HitQueue getQueue();
+
+	public abstract long getTimeToFirstPersistedHit();
 
 	public abstract Thread getThread();
 
@@ -0,0 +1,60 @@
+package com.google.analytics.tracking.android;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+
+/**
+ * Immutable snapshot of the app's package metadata. Reading it costs several
+ * package manager round-trips, so it is built once and only rebuilt when the
+ * package changes.
+ */
+class AppInfo {
+	private final String mAppName;
+	private final String mAppVersion;
+	private final String mAppId;
+	private final String mAppInstallerId;
+
+	AppInfo(String appName, String appVersion, String appId, String appInstallerId) {
+		mAppName = appName;
+		mAppVersion = appVersion;
+		mAppId = appId;
+		mAppInstallerId = appInstallerId;
+	}
+
+	static AppInfo create(Context ctx) {
+		PackageManager pm = ctx.getPackageManager();
+		String appId = ctx.getPackageName();
+		String appInstallerId = pm.getInstallerPackageName(appId);
+
+		String appName = appId;
+		String appVersion = null;
+		try {
+			PackageInfo packageInfo = pm.getPackageInfo(appId, 0);
+			if (packageInfo != null) {
+				appName = pm.getApplicationLabel(packageInfo.applicationInfo)
+						.toString();
+				appVersion = packageInfo.versionName;
+			}
+		} catch (PackageManager.NameNotFoundException exception) {
+			Log.e("Error retrieving package info: appName set to " + appName);
+		}
+		return new AppInfo(appName, appVersion, appId, appInstallerId);
+	}
+
+	String getAppName() {
+		return mAppName;
+	}
+
+	String getAppVersion() {
+		return mAppVersion;
+	}
+
+	String getAppId() {
+		return mAppId;
+	}
+
+	String getAppInstallerId() {
+		return mAppInstallerId;
+	}
+}
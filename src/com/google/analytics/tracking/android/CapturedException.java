@@ -0,0 +1,108 @@
+package com.google.analytics.tracking.android;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact, structured copy of a Throwable: the class names along its cause
+ * chain and the top frames of the root cause, plus the first app frame when
+ * it lies below them. It is captured on the calling thread and carried in
+ * the hit as a short string, so GAThread never has to deserialize the
+ * exception.
+ */
+class CapturedException {
+	static final int MAX_CAPTURED_FRAMES = 32;
+	private static final char FIELD_SEPARATOR = '\t';
+	private static final char LINE_SEPARATOR = '\n';
+	private final List<String> mCauseClassNames;
+	private final StackTraceElement[] mFrames;
+
+	CapturedException(List<String> causeClassNames, StackTraceElement[] frames) {
+		mCauseClassNames = causeClassNames;
+		mFrames = frames;
+	}
+
+	/**
+	 * Returns the class names along the cause chain, outermost first.
+	 */
+	List<String> getCauseClassNames() {
+		return mCauseClassNames;
+	}
+
+	String getRootCauseClassName() {
+		return mCauseClassNames.get(mCauseClassNames.size() - 1);
+	}
+
+	/**
+	 * Returns up to MAX_CAPTURED_FRAMES frames of the root cause, followed by
+	 * the first app frame if it was not among them.
+	 */
+	StackTraceElement[] getFrames() {
+		return mFrames;
+	}
+
+	/**
+	 * Encodes the cause chain on the first line and one frame per following
+	 * line. If parser is not null and the first frame in its included
+	 * packages lies beyond MAX_CAPTURED_FRAMES, that frame is encoded after
+	 * the others so the parser still finds it when the hit is built.
+	 */
+	static String encode(Throwable t, StandardExceptionParser parser) {
+		StringBuilder builder = new StringBuilder();
+		Throwable rootCause = t;
+		builder.append(t.getClass().getName());
+		while (rootCause.getCause() != null && rootCause.getCause() != rootCause) {
+			rootCause = rootCause.getCause();
+			builder.append(FIELD_SEPARATOR).append(rootCause.getClass().getName());
+		}
+		StackTraceElement[] frames = rootCause.getStackTrace();
+		int numFrames = frames == null ? 0 : Math.min(frames.length, MAX_CAPTURED_FRAMES);
+		for (int i = 0; i < numFrames; i++) {
+			appendFrame(builder, frames[i]);
+		}
+		if (parser != null && numFrames < frames.length) {
+			int index = parser.getIncludedFrameIndex(frames);
+			if (index >= numFrames) {
+				appendFrame(builder, frames[index]);
+			}
+		}
+		return builder.toString();
+	}
+
+	private static void appendFrame(StringBuilder builder, StackTraceElement frame) {
+		builder.append(LINE_SEPARATOR)
+				.append(frame.getClassName()).append(FIELD_SEPARATOR)
+				.append(frame.getMethodName()).append(FIELD_SEPARATOR)
+				.append(frame.getLineNumber());
+	}
+
+	/**
+	 * Decodes a string produced by {@link #encode}, or returns null if it is
+	 * malformed.
+	 */
+	static CapturedException decode(String encoded) {
+		String[] lines = encoded.split(String.valueOf(LINE_SEPARATOR));
+		if (lines.length == 0 || lines[0].length() == 0) {
+			return null;
+		}
+		List<String> causeClassNames = new ArrayList<String>();
+		for (String className : lines[0].split(String.valueOf(FIELD_SEPARATOR))) {
+			causeClassNames.add(className);
+		}
+		StackTraceElement[] frames = new StackTraceElement[lines.length - 1];
+		for (int i = 1; i < lines.length; i++) {
+			String[] fields = lines[i].split(String.valueOf(FIELD_SEPARATOR));
+			if (fields.length != 3) {
+				return null;
+			}
+			int lineNumber;
+			try {
+				lineNumber = Integer.parseInt(fields[2]);
+			} catch (NumberFormatException e) {
+				return null;
+			}
+			frames[i - 1] = new StackTraceElement(fields[0], fields[1], null, lineNumber);
+		}
+		return new CapturedException(causeClassNames, frames);
+	}
+}
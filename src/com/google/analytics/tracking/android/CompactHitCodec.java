@@ -0,0 +1,179 @@
+package com.google.analytics.tracking.android;
+
+import java.io.ByteArrayOutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compact row format for stored hits. A row is a format version, the hit URL
+ * and then one entry per parameter: a varint parameter id (or 0 followed by
+ * the literal name) and a value. URLs and values are written as a varint tag
+ * that is either a reference into COMMON_VALUES or the length of the UTF-8
+ * bytes that follow. Values are stored unencoded and only form-encoded when
+ * the row is decoded for dispatch.
+ *
+ * PARAM_NAMES and COMMON_VALUES are persisted by position: only append to
+ * them.
+ */
+class CompactHitCodec {
+	private static final int FORMAT_VERSION = 1;
+	private static final String[] PARAM_NAMES = {
+		"v", "_v", "aip", "tid", "t", "sc", "a", "_u", "dt", "dr", "ul", "de",
+		"dp", "sd", "sr", "vp", "je", "fl", "cid", "cn", "cs", "cm", "ck", "cc",
+		"ci", "gclid", "dclid", "gmob_t", "ec", "ea", "el", "ev", "ni", "sn",
+		"sa", "st", "an", "av", "cd", "aid", "aiid", "ti", "ta", "ts", "tr",
+		"tt", "cu", "ip", "ic", "in", "iv", "iq", "exd", "exf", "utv", "utt",
+		"utc", "utl", "sf", "ht"
+	};
+	private static final String[] COMMON_VALUES = {
+		"", "0", "1", "100",
+		"appview", "event", "transaction", "item", "exception", "timing", "social",
+		"start", "end",
+		AnalyticsConstants.ANALYTICS_PATH_SECURE,
+		AnalyticsConstants.ANALYTICS_PATH_INSECURE,
+		"ma1b5"
+	};
+	private static final Map<String, Integer> PARAM_IDS = indexOf(PARAM_NAMES);
+	private static final Map<String, Integer> COMMON_VALUE_IDS = indexOf(COMMON_VALUES);
+
+	private static Map<String, Integer> indexOf(String[] values) {
+		Map<String, Integer> ids = new HashMap<String, Integer>();
+		for (int i = 0; i < values.length; i++) {
+			ids.put(values[i], Integer.valueOf(i));
+		}
+		return ids;
+	}
+
+	static byte[] encode(String hitUrl, Map<String, String> params) {
+		ByteArrayOutputStream output = new ByteArrayOutputStream(256);
+		writeVarint(output, FORMAT_VERSION);
+		writeValue(output, hitUrl);
+		for (Map.Entry<String, String> entry : params.entrySet()) {
+			Integer paramId = PARAM_IDS.get(entry.getKey());
+			if (paramId != null) {
+				writeVarint(output, paramId.intValue() + 1);
+			} else {
+				writeVarint(output, 0);
+				writeBytes(output, toUtf8(entry.getKey()));
+			}
+			writeValue(output, entry.getValue());
+		}
+		return output.toByteArray();
+	}
+
+	/**
+	 * Decodes a row, appending its parameters to the encoder in wire format.
+	 * Returns the hit URL, or null if the row is malformed.
+	 */
+	static String decode(byte[] row, HitEncoder encoder) {
+		Reader reader = new Reader(row);
+		try {
+			if (reader.readVarint() != FORMAT_VERSION) {
+				return null;
+			}
+			String hitUrl = reader.readValue();
+			while (reader.hasRemaining()) {
+				int paramId = reader.readVarint();
+				String name;
+				if (paramId == 0) {
+					name = reader.readString(reader.readVarint());
+				} else if (paramId <= PARAM_NAMES.length) {
+					name = PARAM_NAMES[paramId - 1];
+				} else {
+					return null;
+				}
+				encoder.appendParam(name, reader.readValue());
+			}
+			return hitUrl;
+		} catch (IndexOutOfBoundsException e) {
+			Log.w("Malformed compact hit: " + e.getMessage());
+			return null;
+		}
+	}
+
+	private static void writeValue(ByteArrayOutputStream output, String value) {
+		Integer valueId = COMMON_VALUE_IDS.get(value);
+		if (valueId != null) {
+			writeVarint(output, (valueId.intValue() << 1) | 1);
+		} else {
+			byte[] bytes = toUtf8(value);
+			writeVarint(output, bytes.length << 1);
+			output.write(bytes, 0, bytes.length);
+		}
+	}
+
+	private static void writeBytes(ByteArrayOutputStream output, byte[] bytes) {
+		writeVarint(output, bytes.length);
+		output.write(bytes, 0, bytes.length);
+	}
+
+	private static void writeVarint(ByteArrayOutputStream output, int value) {
+		while ((value & ~0x7f) != 0) {
+			output.write((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		output.write(value);
+	}
+
+	private static byte[] toUtf8(String value) {
+		try {
+			return value.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private static class Reader {
+		private final byte[] mBytes;
+		private int mPosition;
+
+		Reader(byte[] bytes) {
+			mBytes = bytes;
+		}
+
+		boolean hasRemaining() {
+			return mPosition < mBytes.length;
+		}
+
+		int readVarint() {
+			int value = 0;
+			for (int shift = 0; shift < 32; shift += 7) {
+				int b = readByte();
+				value |= (b & 0x7f) << shift;
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new IndexOutOfBoundsException("varint too long");
+		}
+
+		String readValue() {
+			int tag = readVarint();
+			if ((tag & 1) != 0) {
+				return COMMON_VALUES[tag >>> 1];
+			}
+			return readString(tag >>> 1);
+		}
+
+		String readString(int length) {
+			if (length < 0 || mPosition + length > mBytes.length) {
+				throw new IndexOutOfBoundsException("string past end of row");
+			}
+			try {
+				String value = new String(mBytes, mPosition, length, "UTF-8");
+				mPosition += length;
+				return value;
+			} catch (UnsupportedEncodingException e) {
+				throw new AssertionError(e);
+			}
+		}
+
+		private int readByte() {
+			if (mPosition >= mBytes.length) {
+				throw new IndexOutOfBoundsException("varint past end of row");
+			}
+			return mBytes[mPosition++] & 0xff;
+		}
+	}
+}
@@ -0,0 +1,21 @@
+package com.google.analytics.tracking.android;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+
+/**
+ * Tells GoogleAnalytics to rebuild its DeviceContext when the configuration
+ * changes, for example on rotation or a locale change.
+ */
+class ConfigurationChangeReceiver extends BroadcastReceiver {
+	private final GoogleAnalytics mAnalytics;
+
+	ConfigurationChangeReceiver(GoogleAnalytics analytics) {
+		mAnalytics = analytics;
+	}
+
+	public void onReceive(Context ctx, Intent intent) {
+		mAnalytics.invalidateDeviceContext();
+	}
+}
@@ -0,0 +1,54 @@
+package com.google.analytics.tracking.android;
+
+import android.content.Context;
+import android.util.DisplayMetrics;
+import java.util.Locale;
+
+/**
+ * Immutable snapshot of the device settings added to every hit. Building the
+ * strings on each hit is wasted work, so it is built once and rebuilt when
+ * the configuration or the default locale changes.
+ */
+class DeviceContext {
+	private final int mGeneration;
+	private final Locale mLocale;
+	private final String mLanguage;
+	private final String mScreenResolution;
+
+	DeviceContext(int generation, Locale locale, String screenResolution) {
+		mGeneration = generation;
+		mLocale = locale;
+		mLanguage = Utils.getLanguage(locale);
+		mScreenResolution = screenResolution;
+	}
+
+	/**
+	 * Builds a snapshot of the current settings. generation is the
+	 * configuration generation the caller read before building it.
+	 */
+	static DeviceContext create(Context ctx, int generation) {
+		DisplayMetrics metrics = ctx.getResources().getDisplayMetrics();
+		return new DeviceContext(generation, Locale.getDefault(),
+				metrics.widthPixels + "x" + metrics.heightPixels);
+	}
+
+	int getGeneration() {
+		return mGeneration;
+	}
+
+	/**
+	 * Returns true if this snapshot was built for the current default locale.
+	 * Locale.setDefault does not broadcast a configuration change.
+	 */
+	boolean isCurrent() {
+		return mLocale == Locale.getDefault();
+	}
+
+	String getLanguage() {
+		return mLanguage;
+	}
+
+	String getScreenResolution() {
+		return mScreenResolution;
+	}
+}
@@ -3,6 +3,6 @@ package com.google.analytics.tracking.android;
 import java.util.List;
 
 abstract interface Dispatcher {
-	public abstract int dispatchHits(List<Hit> hits);
+	public abstract List<Hit> dispatchHits(List<Hit> hits);
 	public abstract boolean okToDispatch();
 }
\ No newline at end of file
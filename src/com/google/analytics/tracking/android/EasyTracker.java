@@ -238,6 +238,7 @@ public class EasyTracker {
 
 		public void run() {
 			EasyTracker.this.mIsInForeground = false;
+			GAServiceManager.getInstance().flushBufferedHits();
 		}
 	}
 
@@ -294,6 +295,9 @@ public class EasyTracker {
 		public void send(String hitType, Map<String, String> params) {
 		}
 
+		public void send(HitBuilders.FieldBuilder<?> builder) {
+		}
+
 		public String get(String key) {
 			return "";
 		}
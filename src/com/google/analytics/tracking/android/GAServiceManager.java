@@ -8,13 +8,45 @@ import android.os.Message;
 import com.google.android.gms.common.util.VisibleForTesting;
 
 public class GAServiceManager implements ServiceManager {
+	/**
+	 * Storage engine used for hits when the SDK falls back to its local store.
+	 */
+	public static enum StoreEngine {
+		SQLITE, SEGMENTED_LOG
+	}
+
+	/**
+	 * Eviction class of a stored hit, declared lowest first. When the local
+	 * store is full, lower priority hits are evicted first.
+	 */
+	public static enum HitPriority {
+		LOW, NORMAL, HIGH
+	}
+
 	private static final int MSG_KEY = 1;
 	private static final Object MSG_OBJECT = new Object();
 	private Context ctx;
 	private AnalyticsStore store;
+	// Held while a setter passes its value to the store. The store is called
+	// outside this object's monitor, because it reports back through the
+	// listener, which takes the monitor. This lock keeps concurrent setters'
+	// calls in the order their values were recorded.
+	private final Object storeConfigLock = new Object();
 	private volatile AnalyticsThread thread;
 	private int dispatchPeriodInSeconds = 1800;
+	// Starts out true so that initialize() dispatches hits left in the local
+	// store by an earlier session.
 	private boolean pendingDispatch = true;
+	private boolean dispatchRequested;
+	private boolean connectionReuse = false;
+	private int maxBatchBytes = 0;
+	private int groupCommitMaxHits = 1;
+	private long groupCommitMaxMillis = 0;
+	private boolean compactHitEncoding = false;
+	private int[] evictionQuotas = new int[HitPriority.values().length];
+	private StoreEngine storeEngine = StoreEngine.SQLITE;
+	private int writeBehindMaxHits = 0;
+	private long writeBehindMaxMillis = 0;
 
 	private boolean connected = true;
 
@@ -90,6 +122,15 @@ public class GAServiceManager implements ServiceManager {
 		}
 	}
 
+	/**
+	 * Drops the dispatch that initialize() would run for hits left in the
+	 * local store, unless the app has already asked for one. Used in
+	 * fast-start mode, where a dispatch binds to the service.
+	 */
+	synchronized void cancelStartupDispatch() {
+		this.pendingDispatch = this.dispatchRequested;
+	}
+
 	@VisibleForTesting
 	AnalyticsStoreStateListener getListener() {
 		return this.listener;
@@ -100,7 +141,31 @@ public class GAServiceManager implements ServiceManager {
 			if (this.ctx == null) {
 				throw new IllegalStateException("Cant get a store unless we have a context");
 			}
-			this.store = new PersistentAnalyticsStore(this.listener, this.ctx);
+			AnalyticsStoreStateListener storeListener = this.listener;
+			WriteBehindAnalyticsStore writeBehindStore = null;
+			if (this.writeBehindMaxHits > 0) {
+				writeBehindStore = new WriteBehindAnalyticsStore(this.listener,
+						this.writeBehindMaxHits, this.writeBehindMaxMillis);
+				storeListener = writeBehindStore;
+			}
+			if (this.storeEngine == StoreEngine.SEGMENTED_LOG) {
+				this.store = new LogAnalyticsStore(storeListener, this.ctx);
+			} else {
+				this.store = new PersistentAnalyticsStore(storeListener, this.ctx);
+			}
+			if (writeBehindStore != null) {
+				writeBehindStore.setDelegate(this.store);
+				this.store = writeBehindStore;
+			}
+			// The new store is not visible to other threads yet, so configuring
+			// it here cannot contend with its own callbacks.
+			this.store.setConnectionReuse(this.connectionReuse);
+			this.store.setMaxBatchBytes(this.maxBatchBytes);
+			this.store.setGroupCommitWindow(this.groupCommitMaxHits, this.groupCommitMaxMillis);
+			this.store.setCompactHitEncoding(this.compactHitEncoding);
+			for (HitPriority priority : HitPriority.values()) {
+				this.store.setEvictionQuota(priority, this.evictionQuotas[priority.ordinal()]);
+			}
 		}
 		if (this.handler == null) {
 			initializeHandler();
@@ -115,6 +180,7 @@ public class GAServiceManager implements ServiceManager {
 		if (this.thread == null) {
 			Log.w("dispatch call queued.  Need to call GAServiceManager.getInstance().initialize().");
 			this.pendingDispatch = true;
+			this.dispatchRequested = true;
 			return;
 		}
 
@@ -141,6 +207,175 @@ public class GAServiceManager implements ServiceManager {
 					dispatchPeriodInSeconds * 1000);
 	}
 
+	/**
+	 * When enabled, hits are dispatched over a single pooled, keep-alive HTTP
+	 * client instead of opening a new connection for every hit.
+	 */
+	public void setConnectionReuse(boolean connectionReuse) {
+		synchronized (this.storeConfigLock) {
+			AnalyticsStore store;
+			synchronized (this) {
+				this.connectionReuse = connectionReuse;
+				store = this.store;
+			}
+			if (store != null) {
+				store.setConnectionReuse(connectionReuse);
+			}
+		}
+	}
+
+	/**
+	 * Sends stored hits as newline-delimited batches of up to maxBatchBytes
+	 * per request. Pass 0 to send one hit per request.
+	 */
+	public void setMaxBatchBytes(int maxBatchBytes) {
+		synchronized (this.storeConfigLock) {
+			AnalyticsStore store;
+			synchronized (this) {
+				this.maxBatchBytes = maxBatchBytes;
+				store = this.store;
+			}
+			if (store != null) {
+				store.setMaxBatchBytes(maxBatchBytes);
+			}
+		}
+	}
+
+	/**
+	 * Lets the local store hold up to maxHits hits, for at most maxMillis, and
+	 * write them to disk in one transaction. Hits still in memory are lost if
+	 * the process dies before they are committed.
+	 */
+	public void setGroupCommitWindow(int maxHits, long maxMillis) {
+		synchronized (this.storeConfigLock) {
+			AnalyticsStore store;
+			synchronized (this) {
+				this.groupCommitMaxHits = maxHits;
+				this.groupCommitMaxMillis = maxMillis;
+				store = this.store;
+			}
+			if (store != null) {
+				store.setGroupCommitWindow(maxHits, maxMillis);
+			}
+		}
+	}
+
+	/**
+	 * Stores new hits with numeric parameter ids, UTF-8 values and shared
+	 * dictionary entries instead of as form-encoded strings. Hits are
+	 * converted back to the wire format when they are dispatched.
+	 */
+	public void setCompactHitEncoding(boolean compactHitEncoding) {
+		synchronized (this.storeConfigLock) {
+			AnalyticsStore store;
+			synchronized (this) {
+				this.compactHitEncoding = compactHitEncoding;
+				store = this.store;
+			}
+			if (store != null) {
+				store.setCompactHitEncoding(compactHitEncoding);
+			}
+		}
+	}
+
+	/**
+	 * When the local store is full, hits are evicted lowest priority and
+	 * oldest first, except that hits of a priority holding more than maxHits
+	 * hits are evicted before any others. Pass 0 to remove the quota.
+	 */
+	public void setEvictionQuota(HitPriority priority, int maxHits) {
+		synchronized (this.storeConfigLock) {
+			AnalyticsStore store;
+			synchronized (this) {
+				this.evictionQuotas[priority.ordinal()] = maxHits;
+				store = this.store;
+			}
+			if (store != null) {
+				store.setEvictionQuota(priority, maxHits);
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of hits of the given priority evicted because the
+	 * local store was full.
+	 */
+	public long getNumHitsEvicted(HitPriority priority) {
+		AnalyticsStore store;
+		synchronized (this) {
+			store = this.store;
+		}
+		return store == null ? 0 : store.getNumHitsEvicted(priority);
+	}
+
+	/**
+	 * Returns a snapshot of the local hit store, or null if the store has not
+	 * been created yet. Cheap enough to poll: counts are maintained as hits
+	 * are written and deleted rather than by scanning the store.
+	 */
+	public StoreStats getStoreStats() {
+		AnalyticsStore store;
+		synchronized (this) {
+			store = this.store;
+		}
+		return store == null ? null : store.getStats();
+	}
+
+	/**
+	 * Selects the local hit store. Only takes effect if called before the
+	 * store is first used; hits already written by the other engine are not
+	 * migrated.
+	 */
+	public synchronized void setStoreEngine(StoreEngine storeEngine) {
+		if (this.store != null) {
+			Log.w("setStoreEngine called after the store was created; ignoring.");
+			return;
+		}
+		this.storeEngine = storeEngine;
+	}
+
+	/**
+	 * Keeps up to maxUnflushedHits hits, for at most maxUnflushedMillis, in
+	 * memory before they are written to the local store, and sends them
+	 * straight from memory when the store is otherwise empty. This trades
+	 * durability for I/O: buffered hits are lost if the process is killed. A
+	 * maxUnflushedHits of 0 (the default) writes every hit through; a
+	 * maxUnflushedMillis of 0 removes the age limit. Must be enabled before
+	 * the store is first used.
+	 */
+	public void setWriteBehindBuffer(int maxUnflushedHits, long maxUnflushedMillis) {
+		synchronized (this.storeConfigLock) {
+			AnalyticsStore store;
+			synchronized (this) {
+				store = this.store;
+				if (store != null
+						&& !(store instanceof WriteBehindAnalyticsStore && maxUnflushedHits > 0)) {
+					Log.w("setWriteBehindBuffer called after the store was created; ignoring.");
+					return;
+				}
+				this.writeBehindMaxHits = maxUnflushedHits;
+				this.writeBehindMaxMillis = maxUnflushedMillis;
+			}
+			if (store != null) {
+				((WriteBehindAnalyticsStore) store).setBufferLimits(maxUnflushedHits, maxUnflushedMillis);
+			}
+		}
+	}
+
+	/**
+	 * Writes any hits held in the write-behind buffer to the local store.
+	 * Called when the app goes to the background.
+	 */
+	public void flushBufferedHits() {
+		AnalyticsStore store;
+		synchronized (this) {
+			store = this.store;
+		}
+		if (store instanceof WriteBehindAnalyticsStore) {
+			((WriteBehindAnalyticsStore) store).flush();
+		}
+	}
+
 	@VisibleForTesting
 	synchronized void updatePowerSaveMode(boolean storeIsEmpty, boolean connected) {
 		if (this.storeIsEmpty == storeIsEmpty && this.connected == connected) {
@@ -3,6 +3,7 @@ package com.google.analytics.tracking.android;
 import android.content.Context;
 import android.content.Intent;
 import com.google.android.gms.analytics.internal.Command;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
@@ -31,6 +32,8 @@ class GAServiceProxy implements ServiceProxy,
 	private volatile Timer disconnectCheckTimer;
 	private boolean pendingDispatch;
 	private boolean pendingClearHits;
+	private boolean serviceDeferred;
+	private volatile long firstHitPersistedTime;
 	private Clock clock;
 	private long idleTimeout = SERVICE_CONNECTION_TIMEOUT;
 
@@ -68,8 +71,14 @@ class GAServiceProxy implements ServiceProxy,
 		switch (state) {
 		case CONNECTED_LOCAL:
 			dispatchToStore();
+			if (this.serviceDeferred) {
+				bindDeferredService();
+			}
 			break;
 		case CONNECTED_SERVICE:
+			if (this.store != null) {
+				dispatchToStore();
+			}
 			break;
 		default:
 			this.pendingDispatch = true;
@@ -85,6 +94,9 @@ class GAServiceProxy implements ServiceProxy,
 			this.pendingClearHits = false;
 			break;
 		case CONNECTED_SERVICE:
+			if (this.store != null) {
+				this.store.clearHits(0);
+			}
 			this.client.clearHits();
 			this.pendingClearHits = false;
 			break;
@@ -122,6 +134,41 @@ class GAServiceProxy implements ServiceProxy,
 		connectToService();
 	}
 
+	/**
+	 * Persists hits to the local store right away and binds to the service
+	 * only when the app or the dispatch period asks for a dispatch. Hits
+	 * stored before then are still dispatched from the store. The dispatch
+	 * GAServiceManager would queue when it is initialized is dropped, since
+	 * it would bind at startup.
+	 */
+	public synchronized void deferService() {
+		if (this.client != null) {
+			return;
+		}
+		this.serviceDeferred = true;
+		if (this.testStore == null) {
+			GAServiceManager.getInstance().cancelStartupDispatch();
+		}
+		useStore();
+	}
+
+	private synchronized void bindDeferredService() {
+		this.serviceDeferred = false;
+		Log.iDebug("binding to service on first dispatch");
+		this.state = ConnectState.DISCONNECTED;
+		createService();
+	}
+
+	public long getFirstHitPersistedTime() {
+		return this.firstHitPersistedTime;
+	}
+
+	private void hitsPersisted() {
+		if (this.firstHitPersistedTime == 0) {
+			this.firstHitPersistedTime = this.clock.currentTimeMillis();
+		}
+	}
+
 	public void setIdleTimeout(long idleTimeout) {
 		this.idleTimeout = idleTimeout;
 	}
@@ -140,12 +187,15 @@ class GAServiceProxy implements ServiceProxy,
 		}
 		switch (this.state) {
 		case CONNECTED_LOCAL:
-			while (!this.queue.isEmpty()) {
-				HitParams hitParams = this.queue.poll();
-				Log.iDebug("Sending hit to store");
-				this.store.putHit(hitParams.getWireFormatParams(),
-						hitParams.getHitTimeInMilliseconds(),
-						hitParams.getPath(), hitParams.getCommands());
+			if (!this.queue.isEmpty()) {
+				List<HitParams> hits = new ArrayList<HitParams>(this.queue.size());
+				HitParams hitParams;
+				while ((hitParams = this.queue.poll()) != null) {
+					hits.add(hitParams);
+				}
+				Log.iDebug("Sending " + hits.size() + " hits to store");
+				this.store.putHits(hits);
+				hitsPersisted();
 			}
 
 			if (this.pendingDispatch) {
@@ -161,6 +211,7 @@ class GAServiceProxy implements ServiceProxy,
 						hitParams.getPath(), hitParams.getCommands());
 
 				this.queue.poll();
+				hitsPersisted();
 			}
 			this.lastRequestTime = this.clock.currentTimeMillis();
 			break;
@@ -269,37 +320,6 @@ class GAServiceProxy implements ServiceProxy,
 		this.reConnectTimer.schedule(new ReconnectTask(), RECONNECT_WAIT_TIME);
 	}
 
-	private static class HitParams {
-		private final Map<String, String> wireFormatParams;
-		private final long hitTimeInMilliseconds;
-		private final String path;
-		private final List<Command> commands;
-
-		public HitParams(Map<String, String> wireFormatParams,
-				long hitTimeInMilliseconds, String path, List<Command> commands) {
-			this.wireFormatParams = wireFormatParams;
-			this.hitTimeInMilliseconds = hitTimeInMilliseconds;
-			this.path = path;
-			this.commands = commands;
-		}
-
-		public Map<String, String> getWireFormatParams() {
-			return this.wireFormatParams;
-		}
-
-		public long getHitTimeInMilliseconds() {
-			return this.hitTimeInMilliseconds;
-		}
-
-		public String getPath() {
-			return this.path;
-		}
-
-		public List<Command> getCommands() {
-			return this.commands;
-		}
-	}
-
 	private class DisconnectCheckTask extends TimerTask {
 		private DisconnectCheckTask() {
 		}
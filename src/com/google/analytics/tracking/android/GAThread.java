@@ -1,9 +1,6 @@
 package com.google.analytics.tracking.android;
 
 import android.content.Context;
-import android.content.pm.PackageInfo;
-import android.content.pm.PackageManager;
-import android.content.pm.PackageManager.NameNotFoundException;
 import android.text.TextUtils;
 import com.google.android.gms.analytics.internal.Command;
 import com.google.android.gms.common.util.VisibleForTesting;
@@ -17,11 +14,12 @@ import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.PrintStream;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 class GAThread extends Thread implements AnalyticsThread {
 	private static final String CLIENT_VERSION = "ma1b5";
@@ -29,7 +27,7 @@ class GAThread extends Thread implements AnalyticsThread {
 	private static final int SAMPLE_RATE_MULTIPLIER = 100;
 	private static final int SAMPLE_RATE_MODULO = 10000;
 	static final String API_VERSION = "1";
-	private final LinkedBlockingQueue<Runnable> queue = new LinkedBlockingQueue<Runnable>();
+	private final HitQueue queue;
 
 	private volatile boolean mDisabled = false;
 	private volatile boolean mClosed = false;
@@ -38,7 +36,11 @@ class GAThread extends Thread implements AnalyticsThread {
 	private volatile MetaModel mMetaModel;
 	private volatile String mInstallCampaign;
 	private volatile String mClientId;
+	private volatile AppInfo mAppInfo;
+	private volatile StandardExceptionParser mExceptionParser;
 	private static GAThread sInstance;
+	private static volatile boolean sFastStart;
+	private final long mStartTime = System.currentTimeMillis();
 	private volatile ServiceProxy mServiceProxy;
 	private final Context mContext;
 
@@ -57,6 +59,8 @@ class GAThread extends Thread implements AnalyticsThread {
 		else {
 			this.mContext = ctx;
 		}
+		this.queue = new HitQueue(AnalyticsConstants.HIT_QUEUE_CAPACITY,
+				this.mContext == null ? null : this.mContext.getFileStreamPath("gaHitSpill"));
 		start();
 	}
 
@@ -69,12 +73,28 @@ class GAThread extends Thread implements AnalyticsThread {
 		else {
 			this.mContext = ctx;
 		}
+		this.queue = new HitQueue(AnalyticsConstants.HIT_QUEUE_CAPACITY,
+				this.mContext == null ? null : this.mContext.getFileStreamPath("gaHitSpill"));
 		this.mServiceProxy = proxy;
 		start();
 	}
 
+	/**
+	 * In fast-start mode the thread skips the startup delay, reads its files
+	 * in parallel and persists hits locally until the first app-requested or
+	 * periodic dispatch, when it binds to the service. Must be set before the
+	 * thread is created.
+	 */
+	static void setFastStart(boolean fastStart) {
+		sFastStart = fastStart;
+	}
+
 	private void init() {
 		this.mServiceProxy.createService();
+		initMetaModel();
+	}
+
+	private void initMetaModel() {
 		this.mCommands = new ArrayList<Command>();
 		this.mCommands.add(new Command("appendVersion", "_v", CLIENT_VERSION));
 		this.mCommands.add(new Command("appendQueueTime", "qt", null));
@@ -84,28 +104,28 @@ class GAThread extends Thread implements AnalyticsThread {
 	}
 
 	public void sendHit(Map<String, String> hit) {
-		final Map<String, String> hitCopy = new HashMap<String, String>(hit);
-		final long hitTime = System.currentTimeMillis();
-		hitCopy.put("hitTime", Long.toString(hitTime));
-		queueToThread(new Runnable() {
-			public void run() {
-				hitCopy.put("clientId", mClientId);
+		this.queue.offerHit(hit, System.currentTimeMillis());
+	}
 
-				if (mAppOptOut || isSampledOut(hitCopy)) {
-					return;
-				}
-				if (!TextUtils.isEmpty(mInstallCampaign)) {
-					hitCopy.put("campaign", mInstallCampaign);
-					mInstallCampaign = null;
-				}
-				fillAppParameters(hitCopy);
-				fillCampaignParameters(hitCopy);
-				fillExceptionParameters(hitCopy);
-				Map<String, String> wireFormatParams = HitBuilder.generateHitParams(mMetaModel, hitCopy);
-				mServiceProxy.putHit(wireFormatParams, hitTime, getHostUrl(hitCopy), mCommands);
+	private final HitQueue.HitHandler hitHandler = new HitQueue.HitHandler() {
+		public void handleHit(Map<String, String> hitCopy, long hitTime) {
+			hitCopy.put("hitTime", Long.toString(hitTime));
+			hitCopy.put("clientId", mClientId);
+
+			if (mAppOptOut || isSampledOut(hitCopy)) {
+				return;
 			}
-		});
-	}
+			if (!TextUtils.isEmpty(mInstallCampaign)) {
+				hitCopy.put("campaign", mInstallCampaign);
+				mInstallCampaign = null;
+			}
+			fillAppParameters(hitCopy);
+			fillCampaignParameters(hitCopy);
+			fillExceptionParameters(hitCopy);
+			Map<String, String> wireFormatParams = HitBuilder.generateHitParams(mMetaModel, hitCopy);
+			mServiceProxy.putHit(wireFormatParams, hitTime, getHostUrl(hitCopy), mCommands);
+		}
+	};
 
 	private String getHostUrl(Map<String, String> hit) {
 		String hitUrl = (String) hit.get("internalHitUrl");
@@ -122,6 +142,13 @@ class GAThread extends Thread implements AnalyticsThread {
 	}
 
 	private void fillExceptionParameters(Map<String, String> hit) {
+		String capturedException = hit.remove("capturedException");
+		if (capturedException != null) {
+			CapturedException exception = CapturedException.decode(capturedException);
+			hit.put("exDescription", exception == null ? "Unknown Exception"
+					: getExceptionParser().getDescription(hit.get("exceptionThreadName"), exception));
+			return;
+		}
 		String rawExceptionString = hit.get("rawException");
 		if (rawExceptionString == null) {
 			return;
@@ -146,54 +173,65 @@ class GAThread extends Thread implements AnalyticsThread {
 			return;
 		}
 
-		ArrayList<String> additionalPackages = new ArrayList<String>();
-		ExceptionParser exceptionParser = new StandardExceptionParser(mContext, additionalPackages);
-		hit.put("exDescription", exceptionParser.getDescription(hit.get("exceptionThreadName"), exception));
+		hit.put("exDescription", getExceptionParser().getDescription(hit.get("exceptionThreadName"), exception));
+	}
+
+	private StandardExceptionParser getExceptionParser() {
+		StandardExceptionParser exceptionParser = this.mExceptionParser;
+		if (exceptionParser == null) {
+			exceptionParser = new StandardExceptionParser(mContext, new ArrayList<String>());
+			this.mExceptionParser = exceptionParser;
+		}
+		return exceptionParser;
 	}
 
 	private boolean isSampledOut(Map<String, String> hit) {
-		if (hit.get("sampleRate") != null) {
-			double sampleRate = Utils.safeParseDouble((String) hit
-					.get("sampleRate"));
-			if (sampleRate <= 0.0) {
-				return true;
-			}
-			if (sampleRate < MAX_SAMPLE_RATE) {
-				String clientId = (String) hit.get("clientId");
-				if ((clientId != null)
-						&& (Math.abs(clientId.hashCode()) % SAMPLE_RATE_MODULO >= sampleRate * SAMPLE_RATE_MULTIPLIER)) {
-					return true;
-				}
-			}
+		String sampleRate = hit.get("sampleRate");
+		if (sampleRate == null) {
+			return false;
 		}
-		return false;
+		String clientId = hit.get("clientId");
+		return isSampledOut(Utils.safeParseDouble(sampleRate),
+				clientId == null ? -1 : getSampleBucket(clientId));
 	}
 
-	private void fillAppParameters(Map<String, String> hit) {
-		PackageManager pm = this.mContext.getPackageManager();
-		String appId = this.mContext.getPackageName();
-		String appInstallerId = pm.getInstallerPackageName(appId);
+	static int getSampleBucket(String clientId) {
+		return Math.abs(clientId.hashCode()) % SAMPLE_RATE_MODULO;
+	}
 
-		String appName = appId;
-		String appVersion = null;
-		try {
-			PackageInfo packageInfo = pm.getPackageInfo(
-					this.mContext.getPackageName(), 0);
-			if (packageInfo != null) {
-				appName = pm.getApplicationLabel(packageInfo.applicationInfo)
-						.toString();
-				appVersion = packageInfo.versionName;
-			}
-		} catch (PackageManager.NameNotFoundException exception) {
-			Log.e("Error retrieving package info: appName set to " + appName);
+	/**
+	 * Returns true if a client in sampleBucket is not sampled at sampleRate.
+	 * A negative bucket means the client id is unknown.
+	 */
+	static boolean isSampledOut(double sampleRate, int sampleBucket) {
+		if (sampleRate <= 0.0) {
+			return true;
 		}
-		putIfAbsent(hit, "appName", appName);
-		putIfAbsent(hit, "appVersion", appVersion);
-		putIfAbsent(hit, "appId", appId);
-		putIfAbsent(hit, "appInstallerId", appInstallerId);
+		return sampleRate < MAX_SAMPLE_RATE && sampleBucket >= 0
+				&& sampleBucket >= sampleRate * SAMPLE_RATE_MULTIPLIER;
+	}
+
+	private void fillAppParameters(Map<String, String> hit) {
+		AppInfo appInfo = this.mAppInfo;
+		if (appInfo == null) {
+			appInfo = AppInfo.create(this.mContext);
+			this.mAppInfo = appInfo;
+		}
+		putIfAbsent(hit, "appName", appInfo.getAppName());
+		putIfAbsent(hit, "appVersion", appInfo.getAppVersion());
+		putIfAbsent(hit, "appId", appInfo.getAppId());
+		putIfAbsent(hit, "appInstallerId", appInfo.getAppInstallerId());
 		hit.put("apiVersion", API_VERSION);
 	}
 
+	/**
+	 * Installing a new version of the app kills its process, so the AppInfo
+	 * built here lasts for as long as the package metadata it was read from.
+	 */
+	private void initAppInfo() {
+		this.mAppInfo = AppInfo.create(this.mContext);
+	}
+
 	private void putIfAbsent(Map<String, String> hit, String key, String value) {
 		if (!hit.containsKey(key))
 			hit.put(key, value);
@@ -377,19 +415,24 @@ class GAThread extends Thread implements AnalyticsThread {
 
 	public void run() {
 		try {
-			Thread.sleep(5000L);
-		} catch (InterruptedException e) {
-			Log.w("sleep interrupted in GAThread initialize");
-		}
+			if (sFastStart) {
+				fastStartInit();
+			} else {
+				try {
+					Thread.sleep(5000L);
+				} catch (InterruptedException e) {
+					Log.w("sleep interrupted in GAThread initialize");
+				}
 
-		if (this.mServiceProxy == null) {
-			this.mServiceProxy = new GAServiceProxy(this.mContext, this);
-		}
-		init();
-		try {
-			this.mAppOptOut = loadAppOptOut();
-			this.mClientId = initializeClientId();
-			this.mInstallCampaign = getAndClearCampaign(this.mContext);
+				if (this.mServiceProxy == null) {
+					this.mServiceProxy = new GAServiceProxy(this.mContext, this);
+				}
+				init();
+				initAppInfo();
+				this.mAppOptOut = loadAppOptOut();
+				this.mClientId = initializeClientId();
+				this.mInstallCampaign = getAndClearCampaign(this.mContext);
+			}
 		} catch (Throwable t) {
 			Log.e("Error initializing the GAThread: " + printStackTrace(t));
 
@@ -399,9 +442,7 @@ class GAThread extends Thread implements AnalyticsThread {
 		while (!this.mClosed) {
 			try {
 				try {
-					Runnable r = (Runnable) this.queue.take();
-					if (!this.mDisabled)
-						r.run();
+					this.queue.processNext(this.mDisabled ? null : this.hitHandler);
 				} catch (InterruptedException e) {
 					Log.i(e.toString());
 				}
@@ -414,7 +455,47 @@ class GAThread extends Thread implements AnalyticsThread {
 		}
 	}
 
-	public LinkedBlockingQueue<Runnable> getQueue() {
+	/**
+	 * Reads the client id and install campaign on helper threads while this
+	 * thread builds the MetaModel, then returns so hits can be processed as
+	 * soon as the client id is known.
+	 */
+	private void fastStartInit() throws Throwable {
+		FutureTask<String> clientIdTask = new FutureTask<String>(new Callable<String>() {
+			public String call() {
+				return initializeClientId();
+			}
+		});
+		FutureTask<String> campaignTask = new FutureTask<String>(new Callable<String>() {
+			public String call() {
+				return getAndClearCampaign(mContext);
+			}
+		});
+		new Thread(clientIdTask, "GAThread clientId").start();
+		new Thread(campaignTask, "GAThread campaign").start();
+
+		if (this.mServiceProxy == null) {
+			this.mServiceProxy = new GAServiceProxy(this.mContext, this);
+		}
+		initMetaModel();
+		initAppInfo();
+		this.mAppOptOut = loadAppOptOut();
+		this.mServiceProxy.deferService();
+		try {
+			this.mClientId = clientIdTask.get();
+			this.mInstallCampaign = campaignTask.get();
+		} catch (ExecutionException e) {
+			throw e.getCause();
+		}
+	}
+
+	public long getTimeToFirstPersistedHit() {
+		ServiceProxy serviceProxy = this.mServiceProxy;
+		long firstHitPersistedTime = serviceProxy == null ? 0 : serviceProxy.getFirstHitPersistedTime();
+		return firstHitPersistedTime == 0 ? -1 : firstHitPersistedTime - this.mStartTime;
+	}
+
+	public HitQueue getQueue() {
 		return this.queue;
 	}
 
@@ -1,17 +1,28 @@
 package com.google.analytics.tracking.android;
 
 import com.google.android.gms.common.util.VisibleForTesting;
-import java.util.SortedSet;
-import java.util.TreeSet;
-
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Records which API calls were made between hits. The set of fields used is
+ * an atomic bitmask and the call sequence is a bounded ring, so recording a
+ * call never takes a lock. If more than SEQUENCE_CAPACITY calls are made
+ * between two hits, only the most recent ones are reported.
+ */
 class GAUsage {
 	
 	private static final String BASE_64_CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_";
-	private SortedSet<Field> mUsedFields = new TreeSet<Field>();
+	private static final int SEQUENCE_CAPACITY = 128;
+	private final AtomicLong mUsedFields = new AtomicLong();
 
-	private StringBuilder mSequence = new StringBuilder();
+	// Slot i % SEQUENCE_CAPACITY holds (i << 8) | (ordinal + 1) for the i-th
+	// call, so a reader can tell a current entry from a stale or pending one.
+	private final AtomicLongArray mSequence = new AtomicLongArray(SEQUENCE_CAPACITY);
+	private final AtomicLong mSequenceHead = new AtomicLong();
+	private final AtomicLong mSequenceTail = new AtomicLong();
 
-	private boolean mDisableUsage = false;
+	private final ThreadLocal<Boolean> mDisableUsage = new ThreadLocal<Boolean>();
 
 	private static final GAUsage INSTANCE = new GAUsage();
 
@@ -24,52 +35,63 @@ class GAUsage {
 		return new GAUsage();
 	}
 
-	public synchronized void setDisableUsage(boolean disableUsage) {
-		mDisableUsage = disableUsage;
+	/**
+	 * Disables or re-enables recording for calls made on the current thread.
+	 */
+	public void setDisableUsage(boolean disableUsage) {
+		mDisableUsage.set(disableUsage ? Boolean.TRUE : null);
 	}
 
-	public synchronized void setUsage(Field field) {
-		if (!mDisableUsage) {
-			mUsedFields.add(field);
-			mSequence.append(BASE_64_CHARS.charAt(field.ordinal()));
+	public void setUsage(Field field) {
+		if (mDisableUsage.get() != null) {
+			return;
 		}
-	}
-
-	public synchronized String getAndClearUsage() {
-		StringBuilder result = new StringBuilder();
-		int spot = 0;
-
-		int nextBoundary = 6;
-
-		while (mUsedFields.size() > 0) {
-			Field f = mUsedFields.first();
-			mUsedFields.remove(f);
-			int nextLoc = f.ordinal();
-
-			while (nextLoc >= nextBoundary) {
-				result.append(BASE_64_CHARS.charAt(spot));
-				spot = 0;
-				nextBoundary += 6;
+		long bit = 1L << field.ordinal();
+		while (true) {
+			long used = mUsedFields.get();
+			if ((used & bit) != 0 || mUsedFields.compareAndSet(used, used | bit)) {
+				break;
 			}
-			spot += (1 << f.ordinal() % 6);
 		}
+		long index = mSequenceTail.getAndIncrement();
+		mSequence.set((int) (index % SEQUENCE_CAPACITY), (index << 8) | (field.ordinal() + 1));
+	}
 
-		if (spot > 0 || result.length() == 0) {
-			result.append(BASE_64_CHARS.charAt(spot));
+	public String getAndClearUsage() {
+		long used = mUsedFields.getAndSet(0);
+		if (used == 0) {
+			return String.valueOf(BASE_64_CHARS.charAt(0));
+		}
+		StringBuilder result = new StringBuilder();
+		for (int shift = 0; shift < 64 && (used >>> shift) != 0; shift += 6) {
+			result.append(BASE_64_CHARS.charAt((int) ((used >>> shift) & 0x3f)));
 		}
-
-		mUsedFields.clear();
-
 		return result.toString();
 	}
 
-	public synchronized String getAndClearSequence() {
-		if (mSequence.length() > 0) {
-			mSequence.insert(0, ".");
+	/**
+	 * Returns the calls recorded since the last call, prefixed with ".", or
+	 * an empty string if there were none. A call still being recorded when
+	 * this runs is dropped.
+	 */
+	public String getAndClearSequence() {
+		long head;
+		long tail;
+		do {
+			head = mSequenceHead.get();
+			tail = mSequenceTail.get();
+		} while (!mSequenceHead.compareAndSet(head, tail));
+		StringBuilder result = new StringBuilder();
+		for (long index = Math.max(head, tail - SEQUENCE_CAPACITY); index < tail; index++) {
+			long entry = mSequence.get((int) (index % SEQUENCE_CAPACITY));
+			if ((entry >>> 8) == index) {
+				result.append(BASE_64_CHARS.charAt((int) (entry & 0xff) - 1));
+			}
 		}
-		String result = mSequence.toString();
-		mSequence = new StringBuilder();
-		return result;
+		if (result.length() > 0) {
+			result.insert(0, ".");
+		}
+		return result.toString();
 	}
 
 	public static enum Field {
@@ -1,13 +1,16 @@
 package com.google.analytics.tracking.android;
 
 import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.res.Resources;
 import android.util.DisplayMetrics;
 import com.google.android.gms.common.util.VisibleForTesting;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
-import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class GoogleAnalytics implements TrackerHandler {
 	private boolean mDebug;
@@ -17,8 +20,16 @@ public class GoogleAnalytics implements TrackerHandler {
 	private AdHitIdGenerator mAdHitIdGenerator;
 	private volatile String mClientId;
 	private volatile Boolean mAppOptOut;
+	// Sampling bucket of mClientId, or -1 until it is known.
+	private volatile int mSampleBucket = -1;
 	private final Map<String, Tracker> mTrackers = new HashMap<String, Tracker>();
-	private String mLastTrackingId;
+	private volatile String mLastTrackingId;
+	private volatile DeviceContext mDeviceContext;
+	// Bumped on every configuration change. A cached DeviceContext built for
+	// an older generation is rebuilt, even if it was stored after the change.
+	private final AtomicInteger mDeviceContextGeneration = new AtomicInteger();
+	private ConfigurationChangeReceiver mConfigurationChangeReceiver;
+	private volatile StandardExceptionParser mExceptionParser;
 	private static GoogleAnalytics sInstance;
 
 	@VisibleForTesting
@@ -37,6 +48,9 @@ public class GoogleAnalytics implements TrackerHandler {
 		mContext = context.getApplicationContext();
 		mThread = thread;
 		mAdHitIdGenerator = new AdHitIdGenerator();
+		mConfigurationChangeReceiver = new ConfigurationChangeReceiver(this);
+		mContext.registerReceiver(mConfigurationChangeReceiver,
+				new IntentFilter(Intent.ACTION_CONFIGURATION_CHANGED));
 		
 		mThread.requestAppOptOut(new AppOptOutCallback() {
 			
@@ -49,6 +63,7 @@ public class GoogleAnalytics implements TrackerHandler {
 			
 			public void reportClientId(String clientId) {
 				mClientId = clientId;
+				mSampleBucket = clientId == null ? -1 : GAThread.getSampleBucket(clientId);
 			}
 		});
 	}
@@ -62,6 +77,16 @@ public class GoogleAnalytics implements TrackerHandler {
 		}
 	}
 
+	/**
+	 * Enables fast-start mode. Hits are processed as soon as the client id
+	 * has been read, without the usual startup delay, and are persisted
+	 * locally until the app calls dispatch or the dispatch period elapses.
+	 * Must be called before the first call to {@link #getInstance(Context)}.
+	 */
+	public static void setFastStart(boolean fastStart) {
+		GAThread.setFastStart(fastStart);
+	}
+
 	static GoogleAnalytics getInstance() {
 		synchronized (GoogleAnalytics.class) {
 			return sInstance;
@@ -139,30 +164,79 @@ public class GoogleAnalytics implements TrackerHandler {
 		}
 	}
 
+	/**
+	 * Returns true if a hit with the given sample rate would be discarded by
+	 * the opt-out or sampling checks, using only the state already loaded.
+	 */
+	public boolean isHitSuppressed(double sampleRate) {
+		Boolean appOptOut = mAppOptOut;
+		if (appOptOut != null && appOptOut.booleanValue()) {
+			return true;
+		}
+		return GAThread.isSampledOut(sampleRate, mSampleBucket);
+	}
+
+	/**
+	 * Adds the device fields to hit and queues it. Runs on the caller's
+	 * thread without a lock, so trackers on different threads can send
+	 * concurrently.
+	 */
 	public void sendHit(Map<String, String> hit) {
-		synchronized (this) {
-			if (hit == null) {
-				throw new IllegalArgumentException("hit cannot be null");
-			}
-			hit.put("language", Utils.getLanguage(Locale.getDefault()));
-			hit.put("adSenseAdMobHitId", Integer.toString(mAdHitIdGenerator.getAdHitId()));
-			hit.put("screenResolution",
-					mContext.getResources().getDisplayMetrics().widthPixels
-					+ "x"
-					+ mContext.getResources().getDisplayMetrics().heightPixels);
+		if (hit == null) {
+			throw new IllegalArgumentException("hit cannot be null");
+		}
+		DeviceContext deviceContext = getDeviceContext();
+		hit.put("language", deviceContext.getLanguage());
+		hit.put("adSenseAdMobHitId", Integer.toString(mAdHitIdGenerator.getAdHitId()));
+		hit.put("screenResolution", deviceContext.getScreenResolution());
 
-			hit.put("usage", GAUsage.getInstance().getAndClearSequence());
+		hit.put("usage", GAUsage.getInstance().getAndClearSequence());
 
-			GAUsage.getInstance().getAndClearUsage();
+		GAUsage.getInstance().getAndClearUsage();
 
-			mThread.sendHit(hit);
+		mThread.sendHit(hit);
 
-			mLastTrackingId = hit.get("trackingId");
+		mLastTrackingId = hit.get("trackingId");
+	}
+
+	/**
+	 * Returns the parser trackers use to pick the app frame of an exception
+	 * they capture. It is built once, since building it reads the package
+	 * info.
+	 */
+	public StandardExceptionParser getExceptionParser() {
+		StandardExceptionParser exceptionParser = mExceptionParser;
+		if (exceptionParser == null) {
+			exceptionParser = new StandardExceptionParser(mContext, new ArrayList<String>());
+			mExceptionParser = exceptionParser;
 		}
+		return exceptionParser;
+	}
+
+	private DeviceContext getDeviceContext() {
+		int generation = mDeviceContextGeneration.get();
+		DeviceContext deviceContext = mDeviceContext;
+		if (deviceContext == null || deviceContext.getGeneration() != generation
+				|| !deviceContext.isCurrent()) {
+			deviceContext = DeviceContext.create(mContext, generation);
+			mDeviceContext = deviceContext;
+		}
+		return deviceContext;
+	}
+
+	/**
+	 * Makes the cached DeviceContext stale so it is rebuilt for the next hit.
+	 */
+	void invalidateDeviceContext() {
+		mDeviceContextGeneration.incrementAndGet();
 	}
 
 	@VisibleForTesting
 	void close() {
+		if (mContext != null && mConfigurationChangeReceiver != null) {
+			mContext.unregisterReceiver(mConfigurationChangeReceiver);
+			mConfigurationChangeReceiver = null;
+		}
 	}
 
 	String getTrackingIdForAds() {
@@ -196,6 +270,60 @@ public class GoogleAnalytics implements TrackerHandler {
 		}
 	}
 
+	/**
+	 * What to do with a hit when the in-memory hit queue is full.
+	 */
+	public static enum QueueOverflowPolicy {
+		/** Drop the hit being sent. */
+		DROP_NEWEST,
+		/** Drop the oldest queued hit to make room. */
+		DROP_OLDEST,
+		/** Wait up to the block timeout for room, then drop the hit. */
+		BLOCK,
+		/** Append the hit to a file on the calling thread; it is sent after the queue drains. */
+		SPILL_TO_DISK
+	}
+
+	/**
+	 * Sets how sendHit behaves when the hit queue is full. The default is
+	 * DROP_NEWEST. blockTimeoutMillis is only used by BLOCK.
+	 */
+	public void setQueueOverflowPolicy(QueueOverflowPolicy policy, long blockTimeoutMillis) {
+		if (policy == null) {
+			throw new IllegalArgumentException("policy cannot be null");
+		}
+		mThread.getQueue().setOverflowPolicy(policy, blockTimeoutMillis);
+	}
+
+	/**
+	 * Returns the number of hits waiting in memory to be processed.
+	 */
+	public int getHitQueueDepth() {
+		return mThread.getQueue().getDepth();
+	}
+
+	/**
+	 * Returns the number of hits dropped because the hit queue was full.
+	 */
+	public long getNumHitsDropped() {
+		return mThread.getQueue().getNumDropped();
+	}
+
+	/**
+	 * Returns the number of hits written to disk because the hit queue was full.
+	 */
+	public long getNumHitsSpilled() {
+		return mThread.getQueue().getNumSpilled();
+	}
+
+	/**
+	 * Returns the time from SDK startup until the first hit was handed to
+	 * the local store or the service, or -1 if none has been persisted yet.
+	 */
+	public long getTimeToFirstPersistedHitMillis() {
+		return mThread.getTimeToFirstPersistedHit();
+	}
+
 	public static abstract interface AppOptOutCallback {
 		public abstract void reportAppOptOut(boolean paramBoolean);
 	}
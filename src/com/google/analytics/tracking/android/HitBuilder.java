@@ -13,19 +13,16 @@ class HitBuilder {
 	static Map<String, String> generateHitParams(
 			MetaModel metaModel, Map<String, String> hit)
 	{
-		Map<String, String> params = new HashMap<String, String>();
+		Map<String, String> params = new HashMap<String, String>(hit.size() * 2);
 		for (Entry<String, String> entry : hit.entrySet()) {
-			MetaInfo metaInfo = metaModel.getMetaInfo(entry.getKey());
+			MetaInfo metaInfo = metaModel.getResolvedMetaInfo(entry.getKey());
 			if (metaInfo != null) {
-				String urlParam = metaInfo.getUrlParam(entry.getKey());
-				if (urlParam != null) {
-					String value = entry.getValue();
-					if (metaInfo.getFormatter() != null) {
-						value = metaInfo.getFormatter().format(value);
-					}
-					if (value != null && !value.equals(metaInfo.getDefaultValue())) {
-						params.put(urlParam, value);
-					}
+				String value = entry.getValue();
+				if (metaInfo.getFormatter() != null) {
+					value = metaInfo.getFormatter().format(value);
+				}
+				if (value != null && !value.equals(metaInfo.getDefaultValue())) {
+					params.put(metaInfo.getUrlParam(), value);
 				}
 			}
 		}
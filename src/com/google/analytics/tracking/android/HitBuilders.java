@@ -0,0 +1,204 @@
+package com.google.analytics.tracking.android;
+
+import java.text.DecimalFormat;
+import java.text.DecimalFormatSymbols;
+import java.util.Locale;
+
+/**
+ * Typed builders for the hits sent with {@link Tracker#send(HitBuilders.FieldBuilder)}.
+ * Fields are written straight into the array the tracker sends from, so a
+ * hit is built and sent without any intermediate Map. A builder can only be
+ * sent once.
+ */
+public final class HitBuilders {
+	private static final ThreadLocal<DecimalFormat> sCurrencyFormat = new ThreadLocal<DecimalFormat>() {
+		protected DecimalFormat initialValue() {
+			return new DecimalFormat("0.######", new DecimalFormatSymbols(Locale.US));
+		}
+	};
+
+	private HitBuilders() {
+	}
+
+	static String microsToCurrencyString(long currencyInMicros) {
+		return sCurrencyFormat.get().format(currencyInMicros / 1000000.0D);
+	}
+
+	public static abstract class FieldBuilder<T extends FieldBuilder<T>> {
+		private final String mHitType;
+		private HitFields mFields;
+
+		FieldBuilder(String hitType) {
+			this.mHitType = hitType;
+			this.mFields = HitFields.obtain();
+		}
+
+		@SuppressWarnings("unchecked")
+		private T self() {
+			return (T) this;
+		}
+
+		T set(int fieldId, String value) {
+			fields().set(fieldId, value);
+			return self();
+		}
+
+		/**
+		 * Sets a field by its model name, for fields that have no typed
+		 * setter.
+		 */
+		public T set(String key, String value) {
+			fields().put(key, value);
+			return self();
+		}
+
+		public T setCustomDimension(int index, String value) {
+			if (index < 1) {
+				Log.w("index must be > 0, ignoring setCustomDimension call for " + index + ", " + value);
+				return self();
+			}
+			return set(Utils.getSlottedModelField("customDimension", index), value);
+		}
+
+		public T setCustomMetric(int index, long value) {
+			if (index < 1) {
+				Log.w("index must be > 0, ignoring setCustomMetric call for " + index + ", " + value);
+				return self();
+			}
+			return set(Utils.getSlottedModelField("customMetric", index), Long.toString(value));
+		}
+
+		String get(String key) {
+			return fields().get(key);
+		}
+
+		String getHitType() {
+			return this.mHitType;
+		}
+
+		/**
+		 * Hands the builder's fields to the caller, who becomes responsible
+		 * for recycling them.
+		 */
+		HitFields takeFields() {
+			HitFields fields = fields();
+			this.mFields = null;
+			return fields;
+		}
+
+		private HitFields fields() {
+			if (this.mFields == null) {
+				throw new IllegalStateException("Hit already sent");
+			}
+			return this.mFields;
+		}
+	}
+
+	/**
+	 * Builds an appview hit for the given screen. Unlike
+	 * {@link Tracker#sendView(String)}, the screen is only set for this hit.
+	 */
+	public static final class ScreenViewBuilder extends FieldBuilder<ScreenViewBuilder> {
+		public ScreenViewBuilder(String appScreen) {
+			super("appview");
+			set(HitFields.DESCRIPTION, appScreen);
+		}
+	}
+
+	public static final class EventBuilder extends FieldBuilder<EventBuilder> {
+		public EventBuilder(String category, String action) {
+			super("event");
+			set(HitFields.EVENT_CATEGORY, category);
+			set(HitFields.EVENT_ACTION, action);
+		}
+
+		public EventBuilder setLabel(String label) {
+			return set(HitFields.EVENT_LABEL, label);
+		}
+
+		public EventBuilder setValue(long value) {
+			return set(HitFields.EVENT_VALUE, Long.toString(value));
+		}
+	}
+
+	public static final class TimingBuilder extends FieldBuilder<TimingBuilder> {
+		public TimingBuilder(String category, long intervalInMilliseconds) {
+			super("timing");
+			set(HitFields.TIMING_CATEGORY, category);
+			set(HitFields.TIMING_VALUE, Long.toString(intervalInMilliseconds));
+		}
+
+		public TimingBuilder setVariable(String name) {
+			return set(HitFields.TIMING_VAR, name);
+		}
+
+		public TimingBuilder setLabel(String label) {
+			return set(HitFields.TIMING_LABEL, label);
+		}
+	}
+
+	public static final class SocialBuilder extends FieldBuilder<SocialBuilder> {
+		public SocialBuilder(String network, String action, String target) {
+			super("social");
+			set(HitFields.SOCIAL_NETWORK, network);
+			set(HitFields.SOCIAL_ACTION, action);
+			set(HitFields.SOCIAL_TARGET, target);
+		}
+	}
+
+	/**
+	 * Builds a transaction hit. Unlike {@link Tracker#sendTransaction}, items
+	 * are not sent with it; send an {@link ItemBuilder} for each item.
+	 */
+	public static final class TransactionBuilder extends FieldBuilder<TransactionBuilder> {
+		public TransactionBuilder(String transactionId, long totalCostInMicros) {
+			super("tran");
+			set(HitFields.TRANSACTION_ID, transactionId);
+			set(HitFields.TRANSACTION_TOTAL, microsToCurrencyString(totalCostInMicros));
+		}
+
+		public TransactionBuilder setAffiliation(String affiliation) {
+			return set(HitFields.TRANSACTION_AFFILIATION, affiliation);
+		}
+
+		public TransactionBuilder setShippingCostInMicros(long shippingCostInMicros) {
+			return set(HitFields.TRANSACTION_SHIPPING, microsToCurrencyString(shippingCostInMicros));
+		}
+
+		public TransactionBuilder setTotalTaxInMicros(long totalTaxInMicros) {
+			return set(HitFields.TRANSACTION_TAX, microsToCurrencyString(totalTaxInMicros));
+		}
+
+		public TransactionBuilder setCurrencyCode(String currencyCode) {
+			return set(HitFields.CURRENCY_CODE, currencyCode);
+		}
+	}
+
+	public static final class ItemBuilder extends FieldBuilder<ItemBuilder> {
+		public ItemBuilder(String transactionId, String sku, String name,
+				long priceInMicros, long quantity) {
+			super("item");
+			set(HitFields.TRANSACTION_ID, transactionId);
+			set(HitFields.ITEM_CODE, sku);
+			set(HitFields.ITEM_NAME, name);
+			set(HitFields.ITEM_PRICE, microsToCurrencyString(priceInMicros));
+			set(HitFields.ITEM_QUANTITY, Long.toString(quantity));
+		}
+
+		public ItemBuilder setCategory(String category) {
+			return set(HitFields.ITEM_CATEGORY, category);
+		}
+
+		public ItemBuilder setCurrencyCode(String currencyCode) {
+			return set(HitFields.CURRENCY_CODE, currencyCode);
+		}
+	}
+
+	public static final class ExceptionBuilder extends FieldBuilder<ExceptionBuilder> {
+		public ExceptionBuilder(String description, boolean fatal) {
+			super("exception");
+			set(HitFields.EX_DESCRIPTION, description);
+			set(HitFields.EX_FATAL, Boolean.toString(fatal));
+		}
+	}
+}
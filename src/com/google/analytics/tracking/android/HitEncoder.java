@@ -0,0 +1,259 @@
+package com.google.analytics.tracking.android;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+/**
+ * Writes form-encoded hit parameters straight into a reusable byte buffer.
+ * Values are encoded exactly as URLEncoder.encode(value, "UTF-8") would, with
+ * a fast path for characters that need no escaping. The output is always
+ * ASCII. Not thread safe.
+ */
+class HitEncoder {
+	private static final int INITIAL_CAPACITY = 1024;
+	private static final byte[] HEX_DIGITS = {
+		'0', '1', '2', '3', '4', '5', '6', '7', '8', '9',
+		'A', 'B', 'C', 'D', 'E', 'F'
+	};
+	private static final boolean[] UNRESERVED = new boolean[128];
+	static {
+		for (char c = 'a'; c <= 'z'; c++) {
+			UNRESERVED[c] = true;
+		}
+		for (char c = 'A'; c <= 'Z'; c++) {
+			UNRESERVED[c] = true;
+		}
+		for (char c = '0'; c <= '9'; c++) {
+			UNRESERVED[c] = true;
+		}
+		UNRESERVED['.'] = true;
+		UNRESERVED['-'] = true;
+		UNRESERVED['*'] = true;
+		UNRESERVED['_'] = true;
+	}
+
+	private static final ThreadLocal<HitEncoder> sThreadEncoder = new ThreadLocal<HitEncoder>() {
+		protected HitEncoder initialValue() {
+			return new HitEncoder();
+		}
+	};
+
+	private byte[] mBuffer = new byte[INITIAL_CAPACITY];
+	private int mLength;
+	private int mSegmentStart;
+
+	/**
+	 * Encodes the parameters as k1=v1&k2=v2... using an encoder owned by the
+	 * calling thread.
+	 */
+	static String encodeParams(Map<String, String> params) {
+		HitEncoder encoder = sThreadEncoder.get();
+		encoder.reset();
+		for (Map.Entry<String, String> entry : params.entrySet()) {
+			encoder.appendParam(entry.getKey(), entry.getValue());
+		}
+		return encoder.toString();
+	}
+
+	HitEncoder reset() {
+		mLength = 0;
+		mSegmentStart = 0;
+		return this;
+	}
+
+	int length() {
+		return mLength;
+	}
+
+	/**
+	 * Truncates the output back to a length previously returned by
+	 * {@link #length()}.
+	 */
+	void truncate(int length) {
+		mLength = length;
+		mSegmentStart = Math.min(mSegmentStart, length);
+	}
+
+	/**
+	 * Starts a new newline-separated segment, as used by batch payloads.
+	 * Parameters appended after this are joined with '&' only within the
+	 * segment.
+	 */
+	void startSegment() {
+		if (mLength > 0) {
+			writeByte('\n');
+		}
+		mSegmentStart = mLength;
+	}
+
+	/**
+	 * Appends key=value, encoding the value. The key is written as is.
+	 */
+	void appendParam(String key, String value) {
+		appendSeparator();
+		appendAscii(key);
+		writeByte('=');
+		appendEncoded(value);
+	}
+
+	void appendParam(String key, long value) {
+		appendSeparator();
+		appendAscii(key);
+		writeByte('=');
+		appendLong(value);
+	}
+
+	/**
+	 * Appends a string that is already form encoded, such as a stored hit
+	 * string, as a parameter sequence.
+	 */
+	void appendEncodedParams(String encodedParams) {
+		if (encodedParams.length() == 0) {
+			return;
+		}
+		appendSeparator();
+		appendAscii(encodedParams);
+	}
+
+	/**
+	 * Returns an entity that writes the current contents without copying
+	 * them. It is only valid until the encoder is next modified.
+	 */
+	AbstractHttpEntity asEntity() {
+		return new BufferEntity(mBuffer, mLength);
+	}
+
+	public String toString() {
+		char[] chars = new char[mLength];
+		for (int i = 0; i < mLength; i++) {
+			chars[i] = (char) mBuffer[i];
+		}
+		return new String(chars);
+	}
+
+	private void appendSeparator() {
+		if (mLength > mSegmentStart) {
+			writeByte('&');
+		}
+	}
+
+	private void appendAscii(String value) {
+		int length = value.length();
+		ensureCapacity(length);
+		for (int i = 0; i < length; i++) {
+			mBuffer[mLength++] = (byte) value.charAt(i);
+		}
+	}
+
+	private void appendLong(long value) {
+		if (value < 0) {
+			writeByte('-');
+			if (value == Long.MIN_VALUE) {
+				appendAscii("9223372036854775808");
+				return;
+			}
+			value = -value;
+		}
+		ensureCapacity(19);
+		int start = mLength;
+		do {
+			mBuffer[mLength++] = (byte) ('0' + (value % 10));
+			value /= 10;
+		} while (value != 0);
+		for (int i = start, j = mLength - 1; i < j; i++, j--) {
+			byte digit = mBuffer[i];
+			mBuffer[i] = mBuffer[j];
+			mBuffer[j] = digit;
+		}
+	}
+
+	private void appendEncoded(String value) {
+		int length = value.length();
+		ensureCapacity(length);
+		for (int i = 0; i < length; i++) {
+			char c = value.charAt(i);
+			if (c < 128 && UNRESERVED[c]) {
+				ensureCapacity(1);
+				mBuffer[mLength++] = (byte) c;
+			} else if (c == ' ') {
+				writeByte('+');
+			} else if (c < 0x80) {
+				writeEscaped(c);
+			} else if (c < 0x800) {
+				writeEscaped(0xc0 | (c >> 6));
+				writeEscaped(0x80 | (c & 0x3f));
+			} else if (Character.isHighSurrogate(c) && i + 1 < length
+					&& Character.isLowSurrogate(value.charAt(i + 1))) {
+				int codePoint = Character.toCodePoint(c, value.charAt(++i));
+				writeEscaped(0xf0 | (codePoint >> 18));
+				writeEscaped(0x80 | ((codePoint >> 12) & 0x3f));
+				writeEscaped(0x80 | ((codePoint >> 6) & 0x3f));
+				writeEscaped(0x80 | (codePoint & 0x3f));
+			} else if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c)) {
+				// Unpaired surrogates encode as '?', as URLEncoder does.
+				writeEscaped('?');
+			} else {
+				writeEscaped(0xe0 | (c >> 12));
+				writeEscaped(0x80 | ((c >> 6) & 0x3f));
+				writeEscaped(0x80 | (c & 0x3f));
+			}
+		}
+	}
+
+	private void writeEscaped(int b) {
+		ensureCapacity(3);
+		mBuffer[mLength++] = '%';
+		mBuffer[mLength++] = HEX_DIGITS[(b >> 4) & 0xf];
+		mBuffer[mLength++] = HEX_DIGITS[b & 0xf];
+	}
+
+	private void writeByte(int b) {
+		ensureCapacity(1);
+		mBuffer[mLength++] = (byte) b;
+	}
+
+	private void ensureCapacity(int extra) {
+		if (mLength + extra > mBuffer.length) {
+			byte[] buffer = new byte[Math.max(mBuffer.length * 2, mLength + extra)];
+			System.arraycopy(mBuffer, 0, buffer, 0, mLength);
+			mBuffer = buffer;
+		}
+	}
+
+	private static class BufferEntity extends AbstractHttpEntity {
+		private final byte[] mContent;
+		private final int mLength;
+
+		BufferEntity(byte[] content, int length) {
+			mContent = content;
+			mLength = length;
+			setContentType("text/plain; charset=ISO-8859-1");
+		}
+
+		public boolean isRepeatable() {
+			return true;
+		}
+
+		public long getContentLength() {
+			return mLength;
+		}
+
+		public InputStream getContent() {
+			return new ByteArrayInputStream(mContent, 0, mLength);
+		}
+
+		public void writeTo(OutputStream outstream) throws IOException {
+			outstream.write(mContent, 0, mLength);
+			outstream.flush();
+		}
+
+		public boolean isStreaming() {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,272 @@
+package com.google.analytics.tracking.android;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The per-hit fields of a Tracker hit. Fields set by the hit builders are
+ * kept in an array indexed by field id; any other field goes into a side map.
+ * Instances are pooled per thread and reused once the hit has been handed to
+ * the TrackerHandler, which copies it. Not thread safe.
+ */
+class HitFields extends AbstractMap<String, String> {
+	static final int HIT_TYPE = 0;
+	static final int DESCRIPTION = 1;
+	static final int EVENT_CATEGORY = 2;
+	static final int EVENT_ACTION = 3;
+	static final int EVENT_LABEL = 4;
+	static final int EVENT_VALUE = 5;
+	static final int TIMING_CATEGORY = 6;
+	static final int TIMING_VALUE = 7;
+	static final int TIMING_VAR = 8;
+	static final int TIMING_LABEL = 9;
+	static final int SOCIAL_NETWORK = 10;
+	static final int SOCIAL_ACTION = 11;
+	static final int SOCIAL_TARGET = 12;
+	static final int TRANSACTION_ID = 13;
+	static final int TRANSACTION_AFFILIATION = 14;
+	static final int TRANSACTION_SHIPPING = 15;
+	static final int TRANSACTION_TAX = 16;
+	static final int TRANSACTION_TOTAL = 17;
+	static final int CURRENCY_CODE = 18;
+	static final int ITEM_CODE = 19;
+	static final int ITEM_NAME = 20;
+	static final int ITEM_CATEGORY = 21;
+	static final int ITEM_PRICE = 22;
+	static final int ITEM_QUANTITY = 23;
+	static final int EX_DESCRIPTION = 24;
+	static final int EX_FATAL = 25;
+
+	private static final String[] FIELD_NAMES = {
+		"hitType", "description",
+		"eventCategory", "eventAction", "eventLabel", "eventValue",
+		"timingCategory", "timingValue", "timingVar", "timingLabel",
+		"socialNetwork", "socialAction", "socialTarget",
+		"transactionId", "transactionAffiliation", "transactionShipping",
+		"transactionTax", "transactionTotal", "currencyCode",
+		"itemCode", "itemName", "itemCategory", "itemPrice", "itemQuantity",
+		"exDescription", "exFatal"
+	};
+	private static final Map<String, Integer> FIELD_IDS = new HashMap<String, Integer>();
+	static {
+		for (int i = 0; i < FIELD_NAMES.length; i++) {
+			FIELD_IDS.put(FIELD_NAMES[i], Integer.valueOf(i));
+		}
+	}
+
+	private static final ThreadLocal<HitFields> sSpare = new ThreadLocal<HitFields>();
+
+	private final String[] mValues = new String[FIELD_NAMES.length];
+	// Bit i is set if field i has been set, possibly to null.
+	private long mSetFields;
+	private Map<String, String> mOtherFields;
+	private Set<Map.Entry<String, String>> mEntrySet;
+	private FieldEntry[] mEntries;
+
+	/**
+	 * Returns an empty instance, reusing one recycled on this thread if there
+	 * is one.
+	 */
+	static HitFields obtain() {
+		HitFields fields = sSpare.get();
+		if (fields == null) {
+			return new HitFields();
+		}
+		sSpare.set(null);
+		return fields;
+	}
+
+	/**
+	 * Clears this instance and returns it to the calling thread's pool. It
+	 * must not be used afterwards.
+	 */
+	void recycle() {
+		clear();
+		sSpare.set(this);
+	}
+
+	void set(int fieldId, String value) {
+		mValues[fieldId] = value;
+		mSetFields |= 1L << fieldId;
+	}
+
+	public String get(Object key) {
+		Integer fieldId = FIELD_IDS.get(key);
+		if (fieldId != null) {
+			return mValues[fieldId.intValue()];
+		}
+		return mOtherFields == null ? null : mOtherFields.get(key);
+	}
+
+	public boolean containsKey(Object key) {
+		Integer fieldId = FIELD_IDS.get(key);
+		if (fieldId != null) {
+			return (mSetFields & (1L << fieldId.intValue())) != 0;
+		}
+		return mOtherFields != null && mOtherFields.containsKey(key);
+	}
+
+	public String put(String key, String value) {
+		Integer fieldId = FIELD_IDS.get(key);
+		if (fieldId != null) {
+			String previous = mValues[fieldId.intValue()];
+			set(fieldId.intValue(), value);
+			return previous;
+		}
+		if (mOtherFields == null) {
+			mOtherFields = new HashMap<String, String>();
+		}
+		return mOtherFields.put(key, value);
+	}
+
+	public String remove(Object key) {
+		Integer fieldId = FIELD_IDS.get(key);
+		if (fieldId != null) {
+			String previous = mValues[fieldId.intValue()];
+			mValues[fieldId.intValue()] = null;
+			mSetFields &= ~(1L << fieldId.intValue());
+			return previous;
+		}
+		return mOtherFields == null ? null : mOtherFields.remove(key);
+	}
+
+	public void clear() {
+		for (int i = 0; i < mValues.length; i++) {
+			mValues[i] = null;
+		}
+		mSetFields = 0;
+		if (mOtherFields != null) {
+			mOtherFields.clear();
+		}
+	}
+
+	public int size() {
+		return Long.bitCount(mSetFields) + (mOtherFields == null ? 0 : mOtherFields.size());
+	}
+
+	public Set<Map.Entry<String, String>> entrySet() {
+		if (mEntrySet == null) {
+			mEntrySet = new AbstractSet<Map.Entry<String, String>>() {
+				public Iterator<Map.Entry<String, String>> iterator() {
+					return new FieldIterator();
+				}
+
+				public int size() {
+					return HitFields.this.size();
+				}
+			};
+		}
+		return mEntrySet;
+	}
+
+	/**
+	 * Returns the entry for an array field. Entries are created on first use
+	 * and kept with this instance, so iterating does not allocate them again
+	 * after the instance is recycled.
+	 */
+	private FieldEntry entry(int fieldId) {
+		if (mEntries == null) {
+			mEntries = new FieldEntry[FIELD_NAMES.length];
+		}
+		if (mEntries[fieldId] == null) {
+			mEntries[fieldId] = new FieldEntry(fieldId);
+		}
+		return mEntries[fieldId];
+	}
+
+	/**
+	 * Iterates over the set fields and then the other fields.
+	 */
+	private class FieldIterator implements Iterator<Map.Entry<String, String>> {
+		private int mNextFieldId = nextSetField(0);
+		private Iterator<Map.Entry<String, String>> mOtherEntries;
+
+		private int nextSetField(int from) {
+			for (int i = from; i < mValues.length; i++) {
+				if ((mSetFields & (1L << i)) != 0) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		private Iterator<Map.Entry<String, String>> otherEntries() {
+			if (mOtherEntries == null) {
+				mOtherEntries = mOtherFields == null
+						? new HashMap<String, String>().entrySet().iterator()
+						: mOtherFields.entrySet().iterator();
+			}
+			return mOtherEntries;
+		}
+
+		public boolean hasNext() {
+			return mNextFieldId >= 0 || otherEntries().hasNext();
+		}
+
+		public Map.Entry<String, String> next() {
+			if (mNextFieldId >= 0) {
+				int fieldId = mNextFieldId;
+				mNextFieldId = nextSetField(fieldId + 1);
+				return entry(fieldId);
+			}
+			if (!otherEntries().hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return otherEntries().next();
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+	}
+
+	/**
+	 * Entry for an array field. Like a HashMap entry it reads and writes
+	 * through to this map.
+	 */
+	private class FieldEntry implements Map.Entry<String, String> {
+		private final int mFieldId;
+
+		FieldEntry(int fieldId) {
+			mFieldId = fieldId;
+		}
+
+		public String getKey() {
+			return FIELD_NAMES[mFieldId];
+		}
+
+		public String getValue() {
+			return mValues[mFieldId];
+		}
+
+		public String setValue(String value) {
+			String previous = mValues[mFieldId];
+			set(mFieldId, value);
+			return previous;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Map.Entry)) {
+				return false;
+			}
+			Map.Entry<?, ?> other = (Map.Entry<?, ?>) o;
+			String value = getValue();
+			return getKey().equals(other.getKey())
+					&& (value == null ? other.getValue() == null : value.equals(other.getValue()));
+		}
+
+		public int hashCode() {
+			String value = getValue();
+			return getKey().hashCode() ^ (value == null ? 0 : value.hashCode());
+		}
+
+		public String toString() {
+			return getKey() + "=" + getValue();
+		}
+	}
+}
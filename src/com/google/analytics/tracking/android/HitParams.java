@@ -0,0 +1,36 @@
+package com.google.analytics.tracking.android;
+
+import com.google.android.gms.analytics.internal.Command;
+import java.util.List;
+import java.util.Map;
+
+class HitParams {
+	private final Map<String, String> wireFormatParams;
+	private final long hitTimeInMilliseconds;
+	private final String path;
+	private final List<Command> commands;
+
+	public HitParams(Map<String, String> wireFormatParams,
+			long hitTimeInMilliseconds, String path, List<Command> commands) {
+		this.wireFormatParams = wireFormatParams;
+		this.hitTimeInMilliseconds = hitTimeInMilliseconds;
+		this.path = path;
+		this.commands = commands;
+	}
+
+	public Map<String, String> getWireFormatParams() {
+		return this.wireFormatParams;
+	}
+
+	public long getHitTimeInMilliseconds() {
+		return this.hitTimeInMilliseconds;
+	}
+
+	public String getPath() {
+		return this.path;
+	}
+
+	public List<Command> getCommands() {
+		return this.commands;
+	}
+}
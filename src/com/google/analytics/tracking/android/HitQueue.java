@@ -0,0 +1,397 @@
+package com.google.analytics.tracking.android;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import com.google.analytics.tracking.android.GoogleAnalytics.QueueOverflowPolicy;
+import com.google.android.gms.common.util.VisibleForTesting;
+
+/**
+ * Work queue for GAThread. Hits go into a bounded multi-producer ring whose
+ * slots, including their hit maps, are reused, so queueing a hit does not
+ * allocate a Runnable or a new map. Other tasks (dispatch, opt-out,
+ * callbacks) are never dropped and go into an unbounded side queue; each one
+ * runs only after every hit queued before it has been handled, including
+ * hits spilled to disk. Once a hit has spilled, later hits are spilled too
+ * until the spill file is replayed, so hits are handled in queueing order.
+ *
+ * Only one thread may call {@link #processNext}.
+ */
+class HitQueue {
+	private static final long BLOCK_POLL_NANOS = TimeUnit.MICROSECONDS.toNanos(500);
+
+	/**
+	 * Handles a hit on the consumer thread. The map belongs to the queue and
+	 * must not be kept after the call returns.
+	 */
+	static abstract interface HitHandler {
+		public abstract void handleHit(Map<String, String> hit, long hitTime);
+	}
+
+	private final int mCapacity;
+	private final int mMask;
+	private final AtomicLongArray mSequences;
+	private final List<HashMap<String, String>> mHits;
+	private final long[] mHitTimes;
+	private final AtomicLong mTail = new AtomicLong();
+	private final AtomicLong mHead = new AtomicLong();
+	private final ConcurrentLinkedQueue<Task> mTasks = new ConcurrentLinkedQueue<Task>();
+	private final AtomicLong mNumDropped = new AtomicLong();
+	private final AtomicLong mNumSpilled = new AtomicLong();
+	private final File mSpillFile;
+	private final Object mSpillLock = new Object();
+	// Count of hits ever written to the spill file and count of those replayed.
+	// Both only change under mSpillLock.
+	private volatile long mSpillTail;
+	private volatile long mSpillHead;
+	private volatile QueueOverflowPolicy mOverflowPolicy = QueueOverflowPolicy.DROP_NEWEST;
+	private volatile long mBlockTimeoutNanos;
+	private volatile Thread mConsumer;
+	private volatile boolean mConsumerParked;
+
+	/**
+	 * @param capacity number of hit slots, rounded up to a power of two
+	 * @param spillFile file used by {@link QueueOverflowPolicy#SPILL_TO_DISK},
+	 *     or null to drop hits instead
+	 */
+	HitQueue(int capacity, File spillFile) {
+		int size = 1;
+		while (size < capacity) {
+			size <<= 1;
+		}
+		mCapacity = size;
+		mMask = size - 1;
+		mSequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			mSequences.set(i, i);
+		}
+		mHits = new ArrayList<HashMap<String, String>>(size);
+		for (int i = 0; i < size; i++) {
+			mHits.add(null);
+		}
+		mHitTimes = new long[size];
+		mSpillFile = spillFile;
+		// Hits spilled by an earlier process are replayed once the queue
+		// drains, keeping the times they were sent at.
+		if (spillFile != null && spillFile.length() > 0) {
+			mSpillTail = 1;
+		}
+	}
+
+	void setOverflowPolicy(QueueOverflowPolicy policy, long blockTimeoutMillis) {
+		mBlockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, blockTimeoutMillis));
+		mOverflowPolicy = policy;
+	}
+
+	/**
+	 * Queues a task that is not a hit. Such tasks are never dropped.
+	 */
+	void add(Runnable task) {
+		mTasks.add(new Task(task, mTail.get(), mSpillTail));
+		signalConsumer();
+	}
+
+	/**
+	 * Queues a copy of the hit, applying the overflow policy if the ring is
+	 * full. Returns false if the hit was dropped.
+	 */
+	boolean offerHit(Map<String, String> hit, long hitTime) {
+		if (isSpillPending() && spill(hit, hitTime)) {
+			return true;
+		}
+		if (tryEnqueue(hit, hitTime)) {
+			return true;
+		}
+		switch (mOverflowPolicy) {
+		case DROP_OLDEST:
+			do {
+				long oldest = claimHead();
+				if (oldest >= 0) {
+					release(oldest);
+					mNumDropped.incrementAndGet();
+				}
+			} while (!tryEnqueue(hit, hitTime));
+			return true;
+		case BLOCK:
+			if (Thread.currentThread() != mConsumer) {
+				long deadline = System.nanoTime() + mBlockTimeoutNanos;
+				while (System.nanoTime() < deadline) {
+					LockSupport.parkNanos(BLOCK_POLL_NANOS);
+					if (tryEnqueue(hit, hitTime)) {
+						return true;
+					}
+				}
+			}
+			break;
+		case SPILL_TO_DISK:
+			if (spill(hit, hitTime)) {
+				return true;
+			}
+			break;
+		default:
+			break;
+		}
+		mNumDropped.incrementAndGet();
+		return false;
+	}
+
+	/**
+	 * Runs the next task or handles the next hit, waiting until one is
+	 * available. If handler is null the task or hit is discarded instead.
+	 */
+	void processNext(HitHandler handler) throws InterruptedException {
+		mConsumer = Thread.currentThread();
+		while (true) {
+			Task task = mTasks.peek();
+			if (task != null && isReady(task)) {
+				mTasks.poll();
+				if (handler != null) {
+					task.mRunnable.run();
+				}
+				return;
+			}
+			long position = claimHead();
+			if (position >= 0) {
+				int index = (int) (position & mMask);
+				try {
+					if (handler != null) {
+						handler.handleHit(mHits.get(index), mHitTimes[index]);
+					}
+				} finally {
+					release(position);
+				}
+				return;
+			}
+			if (isSpillPending()) {
+				handleSpilledHits(handler);
+				return;
+			}
+			mConsumerParked = true;
+			if (!hasWork()) {
+				LockSupport.park(this);
+			}
+			mConsumerParked = false;
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of hits waiting in memory.
+	 */
+	int getDepth() {
+		return (int) Math.max(0, mTail.get() - mHead.get());
+	}
+
+	long getNumDropped() {
+		return mNumDropped.get();
+	}
+
+	long getNumSpilled() {
+		return mNumSpilled.get();
+	}
+
+	@VisibleForTesting
+	int getCapacity() {
+		return mCapacity;
+	}
+
+	private boolean tryEnqueue(Map<String, String> hit, long hitTime) {
+		while (true) {
+			long position = mTail.get();
+			int index = (int) (position & mMask);
+			long available = mSequences.get(index) - position;
+			if (available == 0) {
+				if (mTail.compareAndSet(position, position + 1)) {
+					HashMap<String, String> slot = mHits.get(index);
+					if (slot == null) {
+						slot = new HashMap<String, String>(hit);
+						mHits.set(index, slot);
+					} else {
+						slot.putAll(hit);
+					}
+					mHitTimes[index] = hitTime;
+					mSequences.set(index, position + 1);
+					signalConsumer();
+					return true;
+				}
+			} else if (available < 0) {
+				return false;
+			}
+		}
+	}
+
+	/**
+	 * Claims the oldest published hit. Returns its position, or -1 if the
+	 * ring is empty. The slot must be handed back with {@link #release}.
+	 */
+	private long claimHead() {
+		while (true) {
+			long position = mHead.get();
+			int index = (int) (position & mMask);
+			long published = mSequences.get(index) - (position + 1);
+			if (published == 0) {
+				if (mHead.compareAndSet(position, position + 1)) {
+					return position;
+				}
+			} else if (published < 0) {
+				return -1;
+			}
+		}
+	}
+
+	/**
+	 * Empties the slot, so a handled or dropped hit is not kept reachable
+	 * until the slot is reused, and hands it back to the producers.
+	 */
+	private void release(long position) {
+		int index = (int) (position & mMask);
+		HashMap<String, String> slot = mHits.get(index);
+		if (slot != null) {
+			slot.clear();
+		}
+		mSequences.set(index, position + mCapacity);
+	}
+
+	private boolean hasWork() {
+		Task task = mTasks.peek();
+		if (task != null && isReady(task)) {
+			return true;
+		}
+		long position = mHead.get();
+		if (mSequences.get((int) (position & mMask)) == position + 1) {
+			return true;
+		}
+		return isSpillPending();
+	}
+
+	private boolean isReady(Task task) {
+		return mHead.get() >= task.mBarrier && mSpillHead >= task.mSpillBarrier;
+	}
+
+	private boolean isSpillPending() {
+		return mSpillTail > mSpillHead;
+	}
+
+	private void signalConsumer() {
+		if (mConsumerParked) {
+			Thread consumer = mConsumer;
+			if (consumer != null) {
+				LockSupport.unpark(consumer);
+			}
+		}
+	}
+
+	private boolean spill(Map<String, String> hit, long hitTime) {
+		if (mSpillFile == null) {
+			return false;
+		}
+		synchronized (mSpillLock) {
+			DataOutputStream output = null;
+			try {
+				output = new DataOutputStream(new BufferedOutputStream(
+						new FileOutputStream(mSpillFile, true)));
+				output.writeLong(hitTime);
+				output.writeInt(hit.size());
+				for (Map.Entry<String, String> entry : hit.entrySet()) {
+					output.writeUTF(entry.getKey());
+					output.writeBoolean(entry.getValue() != null);
+					if (entry.getValue() != null) {
+						output.writeUTF(entry.getValue());
+					}
+				}
+				output.close();
+				output = null;
+			} catch (IOException e) {
+				Log.w("Error spilling hit to disk: " + e.getMessage());
+				return false;
+			} finally {
+				if (output != null) {
+					try {
+						output.close();
+					} catch (IOException e) {
+					}
+				}
+			}
+			mSpillTail++;
+		}
+		mNumSpilled.incrementAndGet();
+		signalConsumer();
+		return true;
+	}
+
+	private void handleSpilledHits(HitHandler handler) {
+		List<HashMap<String, String>> hits = new ArrayList<HashMap<String, String>>();
+		List<Long> hitTimes = new ArrayList<Long>();
+		synchronized (mSpillLock) {
+			DataInputStream input = null;
+			try {
+				input = new DataInputStream(new BufferedInputStream(
+						new FileInputStream(mSpillFile)));
+				while (true) {
+					long hitTime;
+					try {
+						hitTime = input.readLong();
+					} catch (EOFException e) {
+						break;
+					}
+					int size = input.readInt();
+					HashMap<String, String> hit = new HashMap<String, String>(size * 2);
+					for (int i = 0; i < size; i++) {
+						String key = input.readUTF();
+						hit.put(key, input.readBoolean() ? input.readUTF() : null);
+					}
+					hits.add(hit);
+					hitTimes.add(Long.valueOf(hitTime));
+				}
+			} catch (IOException e) {
+				Log.w("Error reading spilled hits: " + e.getMessage());
+			} finally {
+				if (input != null) {
+					try {
+						input.close();
+					} catch (IOException e) {
+					}
+				}
+				mSpillFile.delete();
+				mSpillHead = mSpillTail;
+			}
+		}
+		if (handler == null) {
+			return;
+		}
+		Log.vDebug("handling " + hits.size() + " hits spilled to disk");
+		for (int i = 0; i < hits.size(); i++) {
+			handler.handleHit(hits.get(i), hitTimes.get(i).longValue());
+		}
+	}
+
+	private static class Task {
+		final Runnable mRunnable;
+		final long mBarrier;
+		final long mSpillBarrier;
+
+		Task(Runnable runnable, long barrier, long spillBarrier) {
+			mRunnable = runnable;
+			mBarrier = barrier;
+			mSpillBarrier = spillBarrier;
+		}
+	}
+}
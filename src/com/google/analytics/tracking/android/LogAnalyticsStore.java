@@ -0,0 +1,440 @@
+package com.google.analytics.tracking.android;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import android.content.Context;
+
+import com.google.analytics.tracking.android.GAServiceManager.HitPriority;
+import com.google.android.gms.analytics.internal.Command;
+import com.google.android.gms.common.util.VisibleForTesting;
+
+/**
+ * AnalyticsStore backed by a {@link SegmentedHitLog} instead of SQLite. Hits
+ * are appended sequentially and dispatched hits are removed by advancing the
+ * log's read cursor, so there is no journal and no per-row delete.
+ */
+class LogAnalyticsStore implements AnalyticsStore {
+	private static final String LOG_DIRECTORY = "google_analytics_v2_log";
+	private final AnalyticsStoreStateListener mListener;
+	private final File mDirectory;
+	private SegmentedHitLog mLog;
+	private final StoreDispatcher mDispatcher;
+	private int mGroupCommitMaxHits = 1;
+	private long mGroupCommitMaxMillis = 0;
+	private int mNumUnforcedHits;
+	private long mFirstUnforcedHitTime;
+	private Timer mTimer;
+	private TimerTask mForceTask;
+	private Clock mClock;
+	private long mLastDispatchTime;
+	private int mLastDispatchNumHits;
+	private int mLastDispatchNumSent;
+	private final Object mReportLock = new Object();
+	private Boolean mPendingStoreIsEmpty;
+	// Held for a whole dispatch cycle, so two dispatches never send the same
+	// hits. The store lock is not held while hits are sent.
+	private final Object mDispatchLock = new Object();
+
+	LogAnalyticsStore(AnalyticsStoreStateListener listener, Context ctx) {
+		this(listener, ctx, new File(ctx.getApplicationContext().getFilesDir(), LOG_DIRECTORY));
+	}
+
+	@VisibleForTesting
+	LogAnalyticsStore(AnalyticsStoreStateListener listener, Context ctx, File directory) {
+		mListener = listener;
+		mDirectory = directory;
+		mClock = new Clock() {
+			public long currentTimeMillis() {
+				return System.currentTimeMillis();
+			}
+		};
+		mDispatcher = new StoreDispatcher(ctx);
+	}
+
+	@VisibleForTesting
+	void setClock(Clock clock) {
+		mClock = clock;
+	}
+
+	@VisibleForTesting
+	void setDispatcher(Dispatcher dispatcher) {
+		mDispatcher.setDispatcher(dispatcher);
+	}
+
+	public void setDispatch(boolean dispatch) {
+		mDispatcher.setDispatch(dispatch);
+	}
+
+	public void setConnectionReuse(boolean reuse) {
+		mDispatcher.setConnectionReuse(reuse);
+	}
+
+	public void setMaxBatchBytes(int maxBatchBytes) {
+		mDispatcher.setMaxBatchBytes(maxBatchBytes);
+	}
+
+	/**
+	 * Appends are always written to the mapped segment immediately; the
+	 * window only controls how often the segment is forced to disk.
+	 */
+	public synchronized void setGroupCommitWindow(int maxHits, long maxMillis) {
+		mGroupCommitMaxHits = Math.max(1, maxHits);
+		mGroupCommitMaxMillis = Math.max(0, maxMillis);
+	}
+
+	/**
+	 * Log records are already written in a binary format, so this has no
+	 * effect.
+	 */
+	public void setCompactHitEncoding(boolean compact) {}
+
+	/**
+	 * The log can only drop its oldest records, so hits are always evicted
+	 * oldest first, quotas are ignored and evictions are not counted by
+	 * priority.
+	 */
+	public void setEvictionQuota(HitPriority priority, int maxHits) {}
+
+	public long getNumHitsEvicted(HitPriority priority) {
+		return 0;
+	}
+
+	/**
+	 * The hit count, size and time range come from the log's records.
+	 * Records carry no hit type, tracking id or priority, so the breakdowns
+	 * by hit type and tracking id are empty, and the per-priority counts and
+	 * oldest times are 0. No evictions or stale deletions are counted.
+	 */
+	public synchronized StoreStats getStats() {
+		StoredHitCounts counts = new StoredHitCounts();
+		long oldestHitTime = 0;
+		long newestHitTime = 0;
+		SegmentedHitLog log = getLog("Error opening hit log for getStats");
+		if (log != null) {
+			SegmentedHitLog.Summary summary = log.summarize();
+			counts.add(null, null, -1, summary.mNumRecords, summary.mNumBytes);
+			oldestHitTime = summary.mOldestHitTime;
+			newestHitTime = summary.mNewestHitTime;
+		}
+		int numPriorities = HitPriority.values().length;
+		return new StoreStats(counts, oldestHitTime, newestHitTime,
+				new long[numPriorities], new long[numPriorities], 0,
+				mLastDispatchTime, mLastDispatchNumHits, mLastDispatchNumSent);
+	}
+
+	public void putHit(Map<String, String> wireFormatParams,
+			long hitTimeInMilliseconds, String path,
+			Collection<Command> commands)
+	{
+		synchronized (this) {
+			SegmentedHitLog log = getLog("Error opening hit log for putHit");
+			if (log != null
+					&& appendHit(log, wireFormatParams, hitTimeInMilliseconds, path, commands)) {
+				commitHits(log, 1);
+			}
+		}
+		reportStoreState();
+	}
+
+	public void putHits(Collection<HitParams> hits) {
+		synchronized (this) {
+			SegmentedHitLog log = getLog("Error opening hit log for putHits");
+			if (log != null) {
+				int numAppended = 0;
+				for (HitParams hit : hits) {
+					if (appendHit(log, hit.getWireFormatParams(),
+							hit.getHitTimeInMilliseconds(), hit.getPath(), hit.getCommands())) {
+						numAppended++;
+					}
+				}
+				commitHits(log, numAppended);
+			}
+		}
+		reportStoreState();
+	}
+
+	private boolean appendHit(SegmentedHitLog log, Map<String, String> wireFormatParams,
+			long hitTimeInMilliseconds, String path, Collection<Command> commands) {
+		PersistentAnalyticsStore.fillVersionParametersIfNecessary(wireFormatParams, commands);
+		if (path == null) {
+			path = AnalyticsConstants.ANALYTICS_PATH_INSECURE;
+		}
+		if (path.length() == 0) {
+			Log.w("empty path: not sending hit");
+			return false;
+		}
+		try {
+			int hitsOverLimit = log.size() - AnalyticsConstants.MAX_NUM_STORED_HITS + 1;
+			if (hitsOverLimit > 0) {
+				Log.wDebug("Store full, deleting " + hitsOverLimit + " hits to make room");
+				log.dropOldest(hitsOverLimit, Long.MAX_VALUE);
+			}
+			if (log.append(hitTimeInMilliseconds,
+					PersistentAnalyticsStore.getAppSystemId(wireFormatParams), path,
+					PersistentAnalyticsStore.generateHitString(wireFormatParams)) == -1) {
+				Log.w("Hit too large for hit log, discarding");
+				return false;
+			}
+			return true;
+		} catch (IOException e) {
+			Log.w("Error storing hit: " + e.getMessage());
+			return false;
+		}
+	}
+
+	private void commitHits(SegmentedHitLog log, int numHits) {
+		if (numHits == 0) {
+			return;
+		}
+		long now = mClock.currentTimeMillis();
+		if (mNumUnforcedHits == 0) {
+			mFirstUnforcedHitTime = now;
+		}
+		mNumUnforcedHits += numHits;
+		if (mNumUnforcedHits >= mGroupCommitMaxHits
+				|| now - mFirstUnforcedHitTime >= mGroupCommitMaxMillis) {
+			forceLog(log);
+		} else if (mForceTask == null) {
+			// Bounds how long appended hits stay unforced when no further
+			// hit arrives to trigger the check above.
+			mForceTask = new TimerTask() {
+				public void run() {
+					forceUnforcedHits();
+				}
+			};
+			getTimer().schedule(mForceTask,
+					Math.max(0, mFirstUnforcedHitTime + mGroupCommitMaxMillis - now));
+		}
+		setStoreIsEmpty(false);
+	}
+
+	private synchronized void forceUnforcedHits() {
+		if (mLog != null && mNumUnforcedHits > 0) {
+			forceLog(mLog);
+		}
+	}
+
+	private void forceLog(SegmentedHitLog log) {
+		if (mForceTask != null) {
+			mForceTask.cancel();
+			mForceTask = null;
+		}
+		log.force();
+		mNumUnforcedHits = 0;
+	}
+
+	/**
+	 * Returns the daemon timer that forces the log when the group-commit
+	 * window closes.
+	 */
+	private Timer getTimer() {
+		if (mTimer == null) {
+			mTimer = new Timer("Hit Log", true);
+		}
+		return mTimer;
+	}
+
+	public void clearHits(long appId) {
+		synchronized (this) {
+			removeHits(appId);
+		}
+		reportStoreState();
+	}
+
+	private void removeHits(long appId) {
+		SegmentedHitLog log = getLog("Error opening hit log for clearHits");
+		if (log == null) {
+			return;
+		}
+		try {
+			if (appId == 0) {
+				log.clear();
+			} else if (log.dropApp(appId) > 0) {
+				mNumUnforcedHits = 0;
+			}
+		} catch (IOException e) {
+			Log.w("Error clearing hits: " + e.getMessage());
+		}
+		setStoreIsEmpty(log.size() == 0);
+	}
+
+	List<Hit> peekHits(int maxHits) {
+		SegmentedHitLog log = getLog("Error opening hit log for peekHits");
+		List<Hit> hits = new ArrayList<Hit>();
+		if (log == null) {
+			return hits;
+		}
+		for (SegmentedHitLog.Record record : log.read(maxHits)) {
+			Hit hit = new Hit(record.mHitString, record.mSeq, record.mHitTime);
+			hit.setHitUrl(record.mHitUrl);
+			hits.add(hit);
+		}
+		return hits;
+	}
+
+	int getNumStoredHits() {
+		SegmentedHitLog log = getLog("Error opening hit log for requestNumHitsPending");
+		return log == null ? 0 : log.size();
+	}
+
+	/**
+	 * Sends one batch of logged hits. The log is read and acknowledged under
+	 * the store lock, but the lock is released while the hits are sent.
+	 */
+	public void dispatch() {
+		boolean dispatchAgain = false;
+		synchronized (mDispatchLock) {
+			Log.vDebug("dispatch running...");
+			List<Hit> hits = null;
+			if (mDispatcher.okToDispatch()) {
+				synchronized (this) {
+					hits = peekHitsForDispatch();
+				}
+			}
+			if (hits != null && !hits.isEmpty()) {
+				List<Hit> sentHits = mDispatcher.dispatchHits(hits);
+				Log.vDebug("sent " + sentHits.size() + " of " + hits.size() + " hits");
+				synchronized (this) {
+					dispatchAgain = acknowledgeHits(hits, sentHits);
+				}
+			}
+		}
+		reportStoreState();
+		if (dispatchAgain) {
+			GAServiceManager.getInstance().dispatch();
+		}
+	}
+
+	/**
+	 * Forces the log, drops stale hits and reads the next batch, or returns
+	 * null if the log cannot be read.
+	 */
+	private List<Hit> peekHitsForDispatch() {
+		SegmentedHitLog log = getLog("Error opening hit log for dispatch");
+		if (log == null) {
+			return null;
+		}
+		forceLog(log);
+		try {
+			int numStaleHits = log.dropOldest(AnalyticsConstants.MAX_BATCHED_HITS_PER_DISPATCH,
+					mClock.currentTimeMillis() - AnalyticsConstants.MILLISECONDS_PER_MONTH);
+			if (numStaleHits > 0) {
+				Log.vDebug("dropped " + numStaleHits + " stale hits");
+			}
+		} catch (IOException e) {
+			Log.w("Error dropping stale hits: " + e.getMessage());
+		}
+		List<Hit> hits = peekHits(mDispatcher.getMaxBatchBytes() > 0 ?
+				AnalyticsConstants.MAX_BATCHED_HITS_PER_DISPATCH
+				: AnalyticsConstants.MAX_REQUESTS_PER_DISPATCH);
+		if (hits.isEmpty()) {
+			Log.vDebug("...nothing to dispatch");
+			setStoreIsEmpty(true);
+		}
+		return hits;
+	}
+
+	/**
+	 * Moves the read cursor past the sent prefix of the batch and returns
+	 * true if more hits are waiting and the whole batch was sent.
+	 */
+	private boolean acknowledgeHits(List<Hit> hits, List<Hit> sentHits) {
+		mLastDispatchTime = mClock.currentTimeMillis();
+		mLastDispatchNumHits = hits.size();
+		mLastDispatchNumSent = sentHits.size();
+		SegmentedHitLog log = getLog("Error opening hit log for dispatch");
+		if (log == null) {
+			return false;
+		}
+		// The log can only drop a prefix; a hit accepted after one that
+		// failed is sent again on the next dispatch.
+		int numAcknowledged = 0;
+		while (numAcknowledged < sentHits.size()
+				&& sentHits.get(numAcknowledged) == hits.get(numAcknowledged)) {
+			numAcknowledged++;
+		}
+		try {
+			if (numAcknowledged > 0) {
+				log.acknowledge(hits.get(numAcknowledged - 1).getHitId());
+			}
+		} catch (IOException e) {
+			Log.w("Error updating hit log cursor: " + e.getMessage());
+			return false;
+		}
+		setStoreIsEmpty(log.size() == 0);
+		return sentHits.size() == hits.size() && log.size() > 0;
+	}
+
+	/**
+	 * Sends hits that are not in this store through its dispatcher and
+	 * returns the ones that were sent.
+	 */
+	public List<Hit> dispatchHits(List<Hit> hits) {
+		if (!mDispatcher.okToDispatch()) {
+			return Collections.emptyList();
+		}
+		return mDispatcher.dispatchHits(hits);
+	}
+
+	public synchronized void close() {
+		mDispatcher.shutdown();
+		if (mTimer != null) {
+			mTimer.cancel();
+			mTimer = null;
+			mForceTask = null;
+		}
+		if (mLog != null) {
+			try {
+				mLog.close();
+			} catch (IOException e) {
+				Log.w("Error closing hit log");
+			}
+			mLog = null;
+		}
+	}
+
+	/**
+	 * Records the emptiness to report to the listener once the store lock is
+	 * released. Must be called with the lock held.
+	 */
+	private void setStoreIsEmpty(boolean isEmpty) {
+		mPendingStoreIsEmpty = Boolean.valueOf(isEmpty);
+	}
+
+	/**
+	 * Passes the last recorded emptiness to the listener after the store lock
+	 * has been released, in the order the reports were recorded.
+	 */
+	private void reportStoreState() {
+		synchronized (mReportLock) {
+			Boolean isEmpty;
+			synchronized (this) {
+				isEmpty = mPendingStoreIsEmpty;
+				mPendingStoreIsEmpty = null;
+			}
+			if (isEmpty != null) {
+				mListener.reportStoreIsEmpty(isEmpty.booleanValue());
+			}
+		}
+	}
+
+	private SegmentedHitLog getLog(String errorMessage) {
+		if (mLog == null) {
+			try {
+				mLog = new SegmentedHitLog(mDirectory);
+			} catch (IOException e) {
+				Log.w(errorMessage + ": " + e.getMessage());
+				return null;
+			}
+		}
+		return mLog;
+	}
+}
@@ -1,17 +1,51 @@
 package com.google.analytics.tracking.android;
 
-import com.google.android.gms.common.util.VisibleForTesting;
 import java.util.HashMap;
 import java.util.Map;
 
 class MetaModel {
+	/**
+	 * Bounds the number of keys outside the precomputed table ("&" keys,
+	 * unknown keys, out-of-range slots) whose lookups are remembered.
+	 */
+	private static final int MAX_CACHED_KEYS = 256;
+	private static final MetaInfo NO_META_INFO = new MetaInfo(null, null, null);
 	
 	private Map<String, MetaInfo> mMetaInfos;
+	private final Map<String, MetaInfo> mResolvedMetaInfos = new HashMap<String, MetaInfo>();
+	private int mNumCachedKeys;
 
 	MetaModel() {
 		mMetaInfos = new HashMap<String, MetaInfo>();
 	}
 
+	/**
+	 * Returns the MetaInfo for a hit key with its URL parameter already
+	 * resolved, so {@link MetaInfo#getUrlParam()} gives the wire name (for
+	 * example "cd5" for "customDimension*5"). Returns null for keys that are
+	 * not part of the model. After the first lookup of a key this is a single
+	 * map lookup. Not thread safe; hits are only built on GAThread.
+	 */
+	MetaInfo getResolvedMetaInfo(String key) {
+		MetaInfo resolved = mResolvedMetaInfos.get(key);
+		if (resolved == null) {
+			resolved = NO_META_INFO;
+			MetaInfo metaInfo = getMetaInfo(key);
+			if (metaInfo != null) {
+				String urlParam = metaInfo.getUrlParam(key);
+				if (urlParam != null) {
+					resolved = new MetaInfo(urlParam, metaInfo.getDefaultValue(),
+							metaInfo.getFormatter());
+				}
+			}
+			if (mNumCachedKeys < MAX_CACHED_KEYS) {
+				mResolvedMetaInfos.put(key, resolved);
+				mNumCachedKeys++;
+			}
+		}
+		return resolved == NO_META_INFO ? null : resolved;
+	}
+
 	MetaInfo getMetaInfo(String key) {
 		if (key.startsWith("&")) {
 			return new MetaInfo(key.substring(1), null, null);
@@ -27,7 +61,23 @@ class MetaModel {
 	public void addField(String key, String urlParam,
 			String defaultValue, Formatter formatter)
 	{
-		mMetaInfos.put(key, new MetaInfo(urlParam, defaultValue, formatter));
+		MetaInfo metaInfo = new MetaInfo(urlParam, defaultValue, formatter);
+		mMetaInfos.put(key, metaInfo);
+		mResolvedMetaInfos.put(key, metaInfo);
+	}
+
+	/**
+	 * Adds a field that is set as key*N, and precomputes the resolved entries
+	 * for slots 1 to maxSlot.
+	 */
+	public void addSlottedField(String key, String urlParam,
+			String defaultValue, Formatter formatter, int maxSlot)
+	{
+		addField(key, urlParam, defaultValue, formatter);
+		for (int slot = 1; slot <= maxSlot; slot++) {
+			mResolvedMetaInfos.put(Utils.getSlottedModelField(key, slot),
+					new MetaInfo(urlParam + slot, defaultValue, formatter));
+		}
 	}
 
 	public static class MetaInfo {
@@ -73,7 +123,6 @@ class MetaModel {
 			return mFormatter;
 		}
 
-		@VisibleForTesting
 		String getUrlParam() {
 			return mUrlParam;
 		}
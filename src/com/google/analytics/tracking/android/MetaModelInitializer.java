@@ -3,6 +3,8 @@ package com.google.analytics.tracking.android;
 import java.text.DecimalFormat;
 
 class MetaModelInitializer {
+	private static final int MAX_CUSTOM_SLOT = 200;
+	private static final int MAX_CONTENT_GROUPING_SLOT = 5;
 	
 	private static final MetaModel.Formatter BOOLEAN_FORMATTER = new MetaModel.Formatter() {
 		
@@ -96,8 +98,8 @@ class MetaModelInitializer {
 		m.addField("sampleRate", "sf", "100", UP_TO_TWO_DIGIT_FLOAT_FORMATTER);
 		m.addField("hitTime", "ht", null, null);
 
-		m.addField("customDimension", "cd", null, null);
-		m.addField("customMetric", "cm", null, null);
-		m.addField("contentGrouping", "cg", null, null);
+		m.addSlottedField("customDimension", "cd", null, null, MAX_CUSTOM_SLOT);
+		m.addSlottedField("customMetric", "cm", null, null, MAX_CUSTOM_SLOT);
+		m.addSlottedField("contentGrouping", "cg", null, null, MAX_CONTENT_GROUPING_SLOT);
 	}
 }
\ No newline at end of file
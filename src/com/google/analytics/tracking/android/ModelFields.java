@@ -73,6 +73,7 @@ public final class ModelFields {
 	public static final String CACHE_BUSTER = "z";
 	public static final String USE_SECURE = "useSecure";
 	public static final String RAW_EXCEPTION = "rawException";
+	static final String CAPTURED_EXCEPTION = "capturedException";
 	public static final String EXCEPTION_THREAD_NAME = "exceptionThreadName";
 	public static final String CUSTOM_DIMENSION = "customDimension";
 	public static final String CUSTOM_METRIC = "customMetric";
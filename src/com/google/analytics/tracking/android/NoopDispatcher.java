@@ -1,6 +1,7 @@
 package com.google.analytics.tracking.android;
 
 import android.text.TextUtils;
+import java.util.Collections;
 import java.util.List;
 
 class NoopDispatcher implements Dispatcher {
@@ -9,9 +10,9 @@ class NoopDispatcher implements Dispatcher {
 		return true;
 	}
 
-	public int dispatchHits(List<Hit> hits) {
+	public List<Hit> dispatchHits(List<Hit> hits) {
 		if (hits == null) {
-			return 0;
+			return Collections.emptyList();
 		}
 		Log.iDebug("Hits not actually being sent as dispatch is false...");
 		int maxHits = Math.min(hits.size(), 40);
@@ -35,6 +36,6 @@ class NoopDispatcher implements Dispatcher {
 				Log.iDebug(logMessage + modifiedHit);
 			}
 		}
-		return maxHits;
+		return hits.subList(0, maxHits);
 	}
 }
\ No newline at end of file
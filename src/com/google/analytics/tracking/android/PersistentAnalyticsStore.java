@@ -1,27 +1,30 @@
 package com.google.analytics.tracking.android;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.TreeMap;
 
-import org.apache.http.client.HttpClient;
-import org.apache.http.impl.client.DefaultHttpClient;
 
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
-import android.database.CursorWindow;
-import android.database.sqlite.SQLiteCursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
 import android.os.Build;
 import android.text.TextUtils;
 
+import com.google.analytics.tracking.android.GAServiceManager.HitPriority;
 import com.google.android.gms.analytics.internal.Command;
 import com.google.android.gms.common.util.VisibleForTesting;
 
@@ -45,27 +48,146 @@ class PersistentAnalyticsStore implements AnalyticsStore {
 	@VisibleForTesting
 	static final String HIT_APP_ID = "hit_app_id";
 
+	@VisibleForTesting
+	static final String HIT_BLOB = "hit_blob";
+
+	@VisibleForTesting
+	static final String HIT_PARAM_SET = "hit_param_set";
+
+	@VisibleForTesting
+	static final String HIT_PRIORITY = "hit_priority";
+
+	@VisibleForTesting
+	static final String HIT_TYPE = "hit_type";
+
+	@VisibleForTesting
+	static final String HIT_TRACKING_ID = "hit_tracking_id";
+
 	@VisibleForTesting
 	static final String HITS_TABLE = "hits2";
+
+	@VisibleForTesting
+	static final String PARAM_SETS_TABLE = "hit_params";
 	
 	private static final String CREATE_HITS_TABLE = String.format(
 			"CREATE TABLE IF NOT EXISTS %s ( '%s' INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, " +
-			"'%s' INTEGER NOT NULL, '%s' TEXT NOT NULL, '%s' TEXT NOT NULL, '%s' INTEGER);",
-			"hits2", "hit_id", "hit_time", "hit_url", "hit_string", "hit_app_id");
+			"'%s' INTEGER NOT NULL, '%s' TEXT NOT NULL, '%s' TEXT NOT NULL, '%s' INTEGER, " +
+			"'%s' BLOB, '%s' INTEGER, '%s' INTEGER NOT NULL DEFAULT %d, '%s' TEXT, '%s' TEXT);",
+			"hits2", "hit_id", "hit_time", "hit_url", "hit_string", "hit_app_id", "hit_blob",
+			"hit_param_set", "hit_priority", HitPriority.NORMAL.ordinal(), "hit_type",
+			"hit_tracking_id");
+
+	private static final String CREATE_PARAM_SETS_TABLE = String.format(
+			"CREATE TABLE IF NOT EXISTS %s ( '%s' INTEGER PRIMARY KEY NOT NULL, " +
+			"'%s' TEXT NOT NULL);",
+			"hit_params", "param_set_id", "param_set_params");
 	
+	private static final String INSERT_HIT = String.format(
+			"INSERT INTO %s (%s, %s, %s, %s, %s, %s, %s, %s, %s) " +
+			"VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)",
+			"hits2", "hit_time", "hit_url", "hit_string", "hit_app_id", "hit_blob",
+			"hit_param_set", "hit_priority", "hit_type", "hit_tracking_id");
+
+	private static final String PEEK_PRIORITY_LANE = peekHitsQuery(String.format(
+			"%s = %d", "hit_priority", HitPriority.HIGH.ordinal()));
+
+	private static final String PEEK_DEFAULT_LANE = peekHitsQuery(String.format(
+			"%s < %d", "hit_priority", HitPriority.HIGH.ordinal()));
+
+	private static final String COUNT_HITS = String.format(
+			"SELECT %s, %s, %s, COUNT(*), SUM(length(%s) + length(%s) + ifnull(length(%s), 0)) " +
+			"FROM %s",
+			"hit_type", "hit_tracking_id", "hit_priority", "hit_url", "hit_string", "hit_blob",
+			"hits2");
+
+	private static final String COUNT_HITS_GROUP_BY = String.format(
+			" GROUP BY %s, %s, %s", "hit_type", "hit_tracking_id", "hit_priority");
+
+	private static final String OLDEST_HIT_TIME_IN_LANE = String.format(
+			"SELECT %s FROM %s WHERE %s = ? ORDER BY %s ASC LIMIT 1",
+			"hit_time", "hits2", "hit_priority", "hit_id");
+
+	private static final String DELETE_UNUSED_PARAM_SETS = String.format(
+			"DELETE FROM %s WHERE %s NOT IN " +
+			"(SELECT %s FROM %s WHERE %s IS NOT NULL)",
+			"hit_params", "param_set_id", "hit_param_set", "hits2", "hit_param_set");
+
+	/**
+	 * The priority lane may take at most this share of the hits peeked for a
+	 * dispatch while lower priority hits are waiting.
+	 */
+	private static final int PRIORITY_LANE_MAX_SHARE_PERCENT = 75;
+
+	/**
+	 * Wire parameters that rarely change between hits. They are stored once
+	 * per distinct combination in PARAM_SETS_TABLE rather than in every row.
+	 */
+	private static final Set<String> SHARED_PARAMS = new HashSet<String>(Arrays.asList(
+			"v", "_v", "tid", "cid", "an", "av", "aid", "ul", "sr"));
+
+	private static final String CREATE_HIT_TIME_INDEX = String.format(
+			"CREATE INDEX IF NOT EXISTS %s_%s_index ON %s (%s);",
+			"hits2", "hit_time", "hits2", "hit_time");
+
+	private static final String CREATE_HIT_APP_ID_INDEX = String.format(
+			"CREATE INDEX IF NOT EXISTS %s_%s_index ON %s (%s);",
+			"hits2", "hit_app_id", "hits2", "hit_app_id");
+
+	private static final String CREATE_HIT_PRIORITY_INDEX = String.format(
+			"CREATE INDEX IF NOT EXISTS %s_%s_index ON %s (%s);",
+			"hits2", "hit_priority", "hits2", "hit_priority");
+
 	private static final String DATABASE_FILENAME = "google_analytics_v2.db";
+	private static final int DATABASE_VERSION = 2;
+	private static final int MAX_SQL_VARIABLES = 999;
 	private final AnalyticsDatabaseHelper mDbHelper;
-	private volatile Dispatcher mDispatcher;
+	private final StoreDispatcher mDispatcher;
 	private final AnalyticsStoreStateListener mListener;
 	private final Context mContext;
 	private final String mDatabaseName;
 	private long mLastDeleteStaleHitsTime;
+	private boolean mStaleSweepPending;
+	private Timer mTimer;
+	private TimerTask mMaintenanceTask;
+	private long mNumStaleHitsEvicted;
+	private long mNumOverflowHitsEvicted;
+	private final long[] mNumHitsEvicted = new long[HitPriority.values().length];
+	private final int[] mEvictionQuotas = new int[HitPriority.values().length];
 	private Clock mClock;
+	private StoredHitCounts mHitCounts;
+	private long mLastDispatchTime;
+	private int mLastDispatchNumHits;
+	private int mLastDispatchNumSent;
+	private final List<PendingHit> mPendingHits = new ArrayList<PendingHit>();
+	private int mGroupCommitMaxHits = 1;
+	private long mGroupCommitMaxMillis = 0;
+	private TimerTask mGroupCommitTask;
+	private boolean mCompactHitEncoding;
+	private HitEncoder mBlobDecoder;
+	private final Map<Long, String> mKnownParamSets = new HashMap<Long, String>();
+	private final Object mReportLock = new Object();
+	private Boolean mPendingStoreIsEmpty;
+	// Held for a whole dispatch cycle, so two dispatches never send the same
+	// hits. The store lock is only held to read and to delete hits, not while
+	// they are sent.
+	private final Object mDispatchLock = new Object();
 
 	PersistentAnalyticsStore(AnalyticsStoreStateListener listener, Context ctx) {
 		this(listener, ctx, DATABASE_FILENAME);
 	}
 
+	private static String peekHitsQuery(String laneCondition) {
+		return String.format(
+				"SELECT %s, %s, %s, CASE WHEN length(%s) > %d THEN NULL ELSE %s END, length(%s), " +
+				"CASE WHEN length(%s) > %d THEN NULL ELSE %s END, length(%s), %s, %s " +
+				"FROM %s LEFT JOIN %s ON %s = %s WHERE %s ORDER BY %s ASC LIMIT ? OFFSET ?",
+				"hit_id", "hit_time", "hit_url", "hit_string", AnalyticsConstants.MAX_POST_LENGTH,
+				"hit_string", "hit_string",
+				"hit_blob", AnalyticsConstants.MAX_POST_LENGTH, "hit_blob", "hit_blob",
+				"hit_param_set", "param_set_params",
+				"hits2", "hit_params", "hit_param_set", "param_set_id", laneCondition, "hit_id");
+	}
+
 	@VisibleForTesting
 	PersistentAnalyticsStore(AnalyticsStoreStateListener listener,
 			Context ctx, String databaseName)
@@ -80,8 +202,7 @@ class PersistentAnalyticsStore implements AnalyticsStore {
 			}
 		};
 		mDbHelper = new AnalyticsDatabaseHelper(mContext, mDatabaseName);
-		mDispatcher = new SimpleNetworkDispatcher(
-				this, createDefaultHttpClientFactory(), mContext);
+		mDispatcher = new StoreDispatcher(mContext);
 
 		mLastDeleteStaleHitsTime = 0;
 	}
@@ -96,39 +217,55 @@ class PersistentAnalyticsStore implements AnalyticsStore {
 		return mDbHelper;
 	}
 
-	private HttpClientFactory createDefaultHttpClientFactory() {
-		return new HttpClientFactory() {
-			
-			public HttpClient newInstance() {
-				return new DefaultHttpClient();
-			}
-		};
+	public void setDispatch(boolean dispatch) {
+		mDispatcher.setDispatch(dispatch);
 	}
 
-	public void setDispatch(boolean dispatch) {
-		mDispatcher = (dispatch ?
-				new SimpleNetworkDispatcher(this,
-						createDefaultHttpClientFactory(),
-						this.mContext)
-		        : new NoopDispatcher());
+	public void setConnectionReuse(boolean reuse) {
+		mDispatcher.setConnectionReuse(reuse);
+	}
+
+	public void setMaxBatchBytes(int maxBatchBytes) {
+		mDispatcher.setMaxBatchBytes(maxBatchBytes);
 	}
 
 	@VisibleForTesting
 	void setDispatcher(Dispatcher dispatcher) {
-		mDispatcher = dispatcher;
+		mDispatcher.setDispatcher(dispatcher);
 	}
 
 	public void clearHits(long appId) {
+		synchronized (this) {
+			removeHits(appId);
+		}
+		reportStoreState();
+	}
+
+	private void removeHits(long appId) {
+		flushPendingHits();
 		SQLiteDatabase db = getWritableDatabase("Error opening database for clearHits");
 		if (db != null) {
-			if (appId == 0) {
-				db.delete(HITS_TABLE, null, null);
-			} else {
-				String[] params = new String[1];
-				params[0] = Long.valueOf(appId).toString();
-				db.delete(HITS_TABLE, HIT_APP_ID + " = ?", params);
+			try {
+				if (appId == 0) {
+					db.delete(HITS_TABLE, null, null);
+					mHitCounts = new StoredHitCounts();
+				} else {
+					String[] params = new String[1];
+					params[0] = Long.valueOf(appId).toString();
+					db.beginTransaction();
+					try {
+						deleteRows(db, HIT_APP_ID + " = ?", params);
+						db.setTransactionSuccessful();
+					} finally {
+						db.endTransaction();
+					}
+				}
+				deleteUnusedParamSets(db);
+			} catch (SQLiteException e) {
+				Log.w("Error clearing hits: " + e.getMessage());
+				invalidateNumStoredHits();
 			}
-			mListener.reportStoreIsEmpty(getNumStoredHits() == 0);
+			setStoreIsEmpty(getNumStoredHits() == 0);
 		}
 	}
 
@@ -136,14 +273,236 @@ class PersistentAnalyticsStore implements AnalyticsStore {
 			long hitTimeInMilliseconds, String path,
 			Collection<Command> commands)
 	{
-		deleteStaleHits();
+		synchronized (this) {
+			addPendingHit(wireFormatParams, hitTimeInMilliseconds, path, commands);
+			commitPendingHitsIfNeeded();
+		}
+		reportStoreState();
+	}
+
+	public void putHits(Collection<HitParams> hits) {
+		synchronized (this) {
+			for (HitParams hit : hits) {
+				addPendingHit(hit.getWireFormatParams(),
+						hit.getHitTimeInMilliseconds(), hit.getPath(),
+						hit.getCommands());
+			}
+			commitPendingHitsIfNeeded();
+		}
+		reportStoreState();
+	}
+
+	/**
+	 * Holds hits in memory until maxHits are pending or the oldest has waited
+	 * maxMillis, then writes them in a single transaction. A maxHits of 1
+	 * commits every putHit/putHits call immediately.
+	 */
+	public void setGroupCommitWindow(int maxHits, long maxMillis) {
+		synchronized (this) {
+			mGroupCommitMaxHits = Math.max(1, maxHits);
+			mGroupCommitMaxMillis = Math.max(0, maxMillis);
+			commitPendingHitsIfNeeded();
+		}
+		reportStoreState();
+	}
+
+	/**
+	 * Stores new hits in the compact row format (see CompactHitCodec) instead
+	 * of as form-encoded strings. Rows in either format can be read back, so
+	 * this can be changed at any time.
+	 */
+	public synchronized void setCompactHitEncoding(boolean compact) {
+		mCompactHitEncoding = compact;
+	}
+
+	synchronized void flushPendingHits() {
+		if (mGroupCommitTask != null) {
+			mGroupCommitTask.cancel();
+			mGroupCommitTask = null;
+		}
+		if (mPendingHits.isEmpty()) {
+			return;
+		}
+		writeHitsToDatabase(mPendingHits);
+		mPendingHits.clear();
+		scheduleMaintenanceIfNeeded();
+	}
+
+	private void addPendingHit(Map<String, String> wireFormatParams,
+			long hitTimeInMilliseconds, String path,
+			Collection<Command> commands)
+	{
 		fillVersionParametersIfNecessary(wireFormatParams, commands);
+		if (path == null) {
+			path = AnalyticsConstants.ANALYTICS_PATH_INSECURE;
+		}
+
+		if (path.length() == 0) {
+			Log.w("empty path: not sending hit");
+			return;
+		}
+		long appId = getAppSystemId(wireFormatParams);
+		Map<String, String> sharedParams = new TreeMap<String, String>();
+		Map<String, String> hitParams = new HashMap<String, String>();
+		for (Map.Entry<String, String> entry : wireFormatParams.entrySet()) {
+			if (SHARED_PARAMS.contains(entry.getKey()) && entry.getValue() != null) {
+				sharedParams.put(entry.getKey(), entry.getValue());
+			} else {
+				hitParams.put(entry.getKey(), entry.getValue());
+			}
+		}
+		Long paramSetId = null;
+		if (!sharedParams.isEmpty()) {
+			paramSetId = getParamSetId(generateHitString(sharedParams));
+		}
+		if (paramSetId == null) {
+			hitParams = wireFormatParams;
+		}
+		HitPriority priority = getHitPriority(wireFormatParams);
+		String hitType = wireFormatParams.get("t");
+		String trackingId = wireFormatParams.get("tid");
+		if (mCompactHitEncoding) {
+			mPendingHits.add(new PendingHit("", hitTimeInMilliseconds, "", appId,
+					CompactHitCodec.encode(path, hitParams), paramSetId, priority,
+					hitType, trackingId));
+		} else {
+			mPendingHits.add(new PendingHit(generateHitString(hitParams),
+					hitTimeInMilliseconds, path, appId, null, paramSetId, priority,
+					hitType, trackingId));
+		}
+	}
+
+	/**
+	 * Returns the id of the stored parameter set with the given encoded
+	 * parameters, storing it first if this store has not seen it before. The
+	 * id is a hash of the parameters; null is returned if it collides with a
+	 * different set or the set could not be stored, and the hit then keeps
+	 * all of its parameters in its own row.
+	 */
+	private Long getParamSetId(String encodedParams) {
+		Long paramSetId = Long.valueOf(hashParamSet(encodedParams));
+		String knownParams = mKnownParamSets.get(paramSetId);
+		if (knownParams != null) {
+			return knownParams.equals(encodedParams) ? paramSetId : null;
+		}
+		SQLiteDatabase db = getWritableDatabase("Error opening database for putHit");
+		if (db == null) {
+			return null;
+		}
+		Cursor cursor = null;
+		try {
+			cursor = db.query(PARAM_SETS_TABLE, new String[] { "param_set_params" },
+					"param_set_id = ?", new String[] { paramSetId.toString() },
+					null, null, null);
+			if (cursor.moveToFirst()) {
+				knownParams = cursor.getString(0);
+			} else {
+				ContentValues values = new ContentValues();
+				values.put("param_set_id", paramSetId);
+				values.put("param_set_params", encodedParams);
+				db.insertOrThrow(PARAM_SETS_TABLE, null, values);
+				knownParams = encodedParams;
+			}
+		} catch (SQLiteException e) {
+			Log.w("Error storing hit parameter set: " + e.getMessage());
+			return null;
+		} finally {
+			if (cursor != null) {
+				cursor.close();
+			}
+		}
+		mKnownParamSets.put(paramSetId, knownParams);
+		return knownParams.equals(encodedParams) ? paramSetId : null;
+	}
 
-		removeOldHitIfFull();
-		writeHitToDatabase(wireFormatParams, hitTimeInMilliseconds, path);
+	/**
+	 * 64-bit FNV-1a hash of the encoded parameters, which are always ASCII.
+	 */
+	private static long hashParamSet(String encodedParams) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < encodedParams.length(); i++) {
+			hash ^= encodedParams.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	/**
+	 * Deletes parameter sets that no stored hit refers to. Pending hits may
+	 * still refer to a set that is deleted here, so they are written first.
+	 */
+	private void deleteUnusedParamSets(SQLiteDatabase db) {
+		flushPendingHits();
+		try {
+			db.execSQL(DELETE_UNUSED_PARAM_SETS);
+		} catch (SQLiteException e) {
+			Log.w("Error deleting unused hit parameter sets: " + e.getMessage());
+		}
+		mKnownParamSets.clear();
 	}
 
-	private void fillVersionParametersIfNecessary(
+	/**
+	 * Transactions, items and exceptions are HIGH priority, events LOW and
+	 * all other hit types NORMAL.
+	 */
+	static HitPriority getHitPriority(Map<String, String> wireFormatParams) {
+		String hitType = wireFormatParams.get("t");
+		if ("transaction".equals(hitType) || "item".equals(hitType)
+				|| "exception".equals(hitType)) {
+			return HitPriority.HIGH;
+		}
+		if ("event".equals(hitType)) {
+			return HitPriority.LOW;
+		}
+		return HitPriority.NORMAL;
+	}
+
+	static long getAppSystemId(Map<String, String> wireFormatParams) {
+		long appSystemId = 0;
+		if (wireFormatParams.containsKey(ModelFields.ANDROID_APP_UID)) {
+			try {
+				appSystemId = Long.parseLong(wireFormatParams.get(ModelFields.ANDROID_APP_UID));
+			} catch (NumberFormatException e) {}
+		}
+		return appSystemId;
+	}
+
+	private void commitPendingHitsIfNeeded() {
+		if (mPendingHits.isEmpty()) {
+			return;
+		}
+		if (mPendingHits.size() >= mGroupCommitMaxHits || mGroupCommitMaxMillis == 0) {
+			flushPendingHits();
+		} else if (mGroupCommitTask == null) {
+			mGroupCommitTask = new TimerTask() {
+				public void run() {
+					flushPendingHits();
+					reportStoreState();
+				}
+			};
+			getTimer().schedule(mGroupCommitTask, mGroupCommitMaxMillis);
+		}
+	}
+
+	/**
+	 * Returns the daemon timer that runs group commits and maintenance ticks
+	 * for this store.
+	 */
+	private Timer getTimer() {
+		if (mTimer == null) {
+			mTimer = new Timer("Analytics Store", true);
+		}
+		return mTimer;
+	}
+
+	private Timer cancelTimer(Timer timer) {
+		if (timer != null) {
+			timer.cancel();
+		}
+		return null;
+	}
+
+	static void fillVersionParametersIfNecessary(
 			Map<String, String> wireFormatParams,
 			Collection<Command> commands)
 	{
@@ -156,7 +515,7 @@ class PersistentAnalyticsStore implements AnalyticsStore {
 		}
 	}
 
-	private void storeVersion(Map<String, String> wireFormatParams,
+	private static void storeVersion(Map<String, String> wireFormatParams,
 			String versionUrlParam, String clientVersion)
 	{
 		String version = clientVersion;
@@ -170,164 +529,457 @@ class PersistentAnalyticsStore implements AnalyticsStore {
 		}
 	}
 
-	private void removeOldHitIfFull() {
-		int hitsOverLimit = getNumStoredHits() - AnalyticsConstants.MAX_NUM_STORED_HITS + 1;
-		if (hitsOverLimit > 0) {
-			List<Hit> hitsToDelete = peekHits(hitsOverLimit);
-			Log.wDebug("Store full, deleting " + hitsToDelete.size() + " hits to make room");
-			deleteHits(hitsToDelete);
-		}
-	}
-
-	private void writeHitToDatabase(Map<String, String> hit,
-			long hitTimeInMilliseconds, String path)
-	{
+	private void writeHitsToDatabase(List<PendingHit> hits) {
 		SQLiteDatabase db = getWritableDatabase("Error opening database for putHit");
 		if (db == null) {
 			return;
 		}
 
-		ContentValues content = new ContentValues();
-
-		content.put(HIT_STRING, generateHitString(hit));
-		content.put(HIT_TIME, hitTimeInMilliseconds);
-		long appSystemId = 0;
-		if (hit.containsKey(ModelFields.ANDROID_APP_UID)) {
+		int numInserted = 0;
+		SQLiteStatement insert = null;
+		try {
+			db.beginTransaction();
 			try {
-				appSystemId = Long.parseLong(hit.get(ModelFields.ANDROID_APP_UID));
-			} catch (NumberFormatException e) {}
+				insert = db.compileStatement(INSERT_HIT);
+				for (PendingHit hit : hits) {
+					insert.bindLong(1, hit.mHitTime);
+					insert.bindString(2, hit.mHitUrl);
+					insert.bindString(3, hit.mHitString);
+					insert.bindLong(4, hit.mAppId);
+					if (hit.mHitBlob != null) {
+						insert.bindBlob(5, hit.mHitBlob);
+					} else {
+						insert.bindNull(5);
+					}
+					if (hit.mParamSetId != null) {
+						insert.bindLong(6, hit.mParamSetId.longValue());
+					} else {
+						insert.bindNull(6);
+					}
+					insert.bindLong(7, hit.mPriority.ordinal());
+					bindStringOrNull(insert, 8, hit.mHitType);
+					bindStringOrNull(insert, 9, hit.mTrackingId);
+					insert.executeInsert();
+					numInserted++;
+				}
+				db.setTransactionSuccessful();
+			} finally {
+				if (insert != null) {
+					insert.close();
+				}
+				db.endTransaction();
+			}
+		} catch (SQLiteException e) {
+			Log.w("Error storing hits: " + e.getMessage());
+			invalidateNumStoredHits();
+			return;
 		}
-		content.put(HIT_APP_ID, appSystemId);
-		if (path == null) {
-			path = AnalyticsConstants.ANALYTICS_PATH_INSECURE;
+		if (mHitCounts != null) {
+			for (PendingHit hit : hits) {
+				mHitCounts.add(hit.mHitType, hit.mTrackingId, hit.mPriority.ordinal(), 1,
+						hit.getNumBytes());
+			}
 		}
+		setStoreIsEmpty(false);
+	}
 
-		if (path.length() == 0) {
-			Log.w("empty path: not sending hit");
-			return;
+	/**
+	 * Records the emptiness to report to the listener once the store lock is
+	 * released. Must be called with the lock held.
+	 */
+	private void setStoreIsEmpty(boolean isEmpty) {
+		mPendingStoreIsEmpty = Boolean.valueOf(isEmpty);
+	}
+
+	/**
+	 * Passes the last recorded emptiness to the listener. Every entry point
+	 * that can change it calls this after releasing the store lock: the
+	 * listener takes GAServiceManager's lock, and GAServiceManager calls into
+	 * this store. mReportLock keeps reports from concurrent callers in order.
+	 */
+	private void reportStoreState() {
+		synchronized (mReportLock) {
+			Boolean isEmpty;
+			synchronized (this) {
+				isEmpty = mPendingStoreIsEmpty;
+				mPendingStoreIsEmpty = null;
+			}
+			if (isEmpty != null) {
+				mListener.reportStoreIsEmpty(isEmpty.booleanValue());
+			}
 		}
-		content.put(HIT_URL, path);
-		try {
-			db.insert(HITS_TABLE, null, content);
-			mListener.reportStoreIsEmpty(false);
-		} catch (SQLiteException e) {
-			Log.w("Error storing hit");
+	}
+
+	private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+		if (value != null) {
+			statement.bindString(index, value);
+		} else {
+			statement.bindNull(index);
 		}
 	}
 
 	public static String generateHitString(Map<String, String> urlParams) {
-		List<String> keyAndValues = new ArrayList<String>(urlParams.size());
-		for (Map.Entry<String, String> entry : urlParams.entrySet()) {
-			keyAndValues.add(entry.getKey() + "=" + HitBuilder.encode(entry.getValue()));
-		}
-		return TextUtils.join("&", keyAndValues);
+		return HitEncoder.encodeParams(urlParams);
 	}
 
-	public List<Hit> peekHits(int maxHits) {
+	/**
+	 * Reads up to maxHits hits, HIGH priority hits first. The priority lane
+	 * is capped at PRIORITY_LANE_MAX_SHARE_PERCENT of maxHits while other hits
+	 * are waiting, so a steady stream of transactions or exceptions cannot
+	 * starve them. Within each lane hits are read oldest first.
+	 * Hit strings longer than MAX_POST_LENGTH can never be sent, so they
+	 * are not loaded into the cursor window; such hits come back with a null
+	 * hit string and are discarded by the dispatcher. Compact rows are decoded
+	 * to the wire format here, and shared parameter sets are joined back onto
+	 * the hits that refer to them.
+	 */
+	private List<Hit> peekHits(int maxHits) {
+		List<Hit> hits = new ArrayList<Hit>();
 		SQLiteDatabase db = getWritableDatabase(
 				"Error opening database for peekHits");
 		if (db == null) {
-			return new ArrayList<Hit>();
+			return hits;
+		}
+
+		int priorityLimit = Math.max(1, maxHits * PRIORITY_LANE_MAX_SHARE_PERCENT / 100);
+		int numPriorityHits = peekLane(db, PEEK_PRIORITY_LANE, 0, priorityLimit, hits);
+		peekLane(db, PEEK_DEFAULT_LANE, 0, maxHits - hits.size(), hits);
+		if (numPriorityHits == priorityLimit && hits.size() < maxHits) {
+			peekLane(db, PEEK_PRIORITY_LANE, numPriorityHits, maxHits - hits.size(), hits);
 		}
+		return hits;
+	}
 
+	/**
+	 * Appends up to maxHits hits from one lane, skipping the first offset,
+	 * and returns the number appended.
+	 */
+	private int peekLane(SQLiteDatabase db, String query, int offset, int maxHits,
+			List<Hit> hits) {
+		if (maxHits <= 0) {
+			return 0;
+		}
+		int numPeeked = 0;
 		Cursor cursor = null;
-		List<Hit> hits = new ArrayList<Hit>();
 		try {
-			cursor = db.query(HITS_TABLE,
-					new String[] { HIT_ID, HIT_TIME, HIT_URL },
-					null, null, null, null,
-					String.format("%s ASC, %s ASC", HIT_URL, HIT_ID),
-					Integer.toString(maxHits));
-			
-			if (cursor.moveToFirst()) {
-				do {
-					Hit hit = new Hit(null, cursor.getLong(0), cursor.getLong(1));
-					hit.setHitUrl(cursor.getString(2));
-					hits.add(hit);
-				} while (cursor.moveToNext());
+			cursor = db.rawQuery(query, new String[] {
+					Integer.toString(maxHits), Integer.toString(offset) });
+			while (cursor.moveToNext()) {
+				Hit hit = new Hit(cursor.getString(3), cursor.getLong(0), cursor.getLong(1));
+				hit.setHitUrl(cursor.getString(2));
+				if (!cursor.isNull(6)) {
+					if (cursor.isNull(5)) {
+						Log.w("hit_blob for hitId " + hit.getHitId() +
+								" too large (" + cursor.getLong(6) +
+								" bytes).  Hit will be deleted.");
+						hit.setHitString(null);
+					} else {
+						decodeHitBlob(hit, cursor.getBlob(5));
+					}
+				} else if (cursor.isNull(3)) {
+					Log.w("hitString for hitId " + hit.getHitId() +
+							" too large (" + cursor.getLong(4) +
+							" chars).  Hit will be deleted.");
+				}
+				if (!cursor.isNull(7) && hit.getHitParams() != null) {
+					if (cursor.isNull(8)) {
+						Log.w("parameter set for hitId " + hit.getHitId() +
+								" is missing.  Hit will be deleted.");
+						hit.setHitString(null);
+					} else if (hit.getHitParams().length() == 0) {
+						hit.setHitString(cursor.getString(8));
+					} else {
+						hit.setHitString(cursor.getString(8) + "&" + hit.getHitParams());
+					}
+				}
+				hits.add(hit);
+				numPeeked++;
 			}
 		} catch (SQLiteException e) {
-			Log.w("error in peekHits fetching hitIds: " + e.getMessage());
-			return new ArrayList<Hit>();
+			Log.w("error in peekHits after " + hits.size() + " hits: " + e.getMessage());
 		} finally {
 			if (cursor != null) {
 				cursor.close();
 			}
 		}
+		return numPeeked;
+	}
 
-		int count = 0;
+	/**
+	 * Returns the number of stored hits of the given priority waiting to be
+	 * dispatched.
+	 */
+	public int getNumHitsPending(HitPriority priority) {
+		int numHits;
+		synchronized (this) {
+			flushPendingHits();
+			StoredHitCounts counts = getHitCounts();
+			numHits = counts == null ? 0 : counts.getNumHits(priority);
+		}
+		reportStoreState();
+		return numHits;
+	}
+
+	/**
+	 * Returns the hit time of the oldest stored hit of the given priority, or
+	 * 0 if there is none.
+	 */
+	public long getOldestPendingHitTime(HitPriority priority) {
+		long hitTime;
+		synchronized (this) {
+			flushPendingHits();
+			hitTime = queryOldestHitTime(priority);
+		}
+		reportStoreState();
+		return hitTime;
+	}
+
+	private long queryOldestHitTime(HitPriority priority) {
+		SQLiteDatabase db = getWritableDatabase(
+				"Error opening database for getOldestPendingHitTime");
+		if (db == null) {
+			return 0;
+		}
+		Cursor cursor = null;
 		try {
-			cursor = db.query(HITS_TABLE,
-					new String[] { HIT_ID, HIT_STRING },
-					null, null, null, null,
-					String.format("%s ASC", new Object[] { HIT_ID }),
-					Integer.toString(maxHits));
-			
-			if (cursor.moveToFirst()) {
-				do {
-					if (cursor instanceof SQLiteCursor) {
-						CursorWindow cw = ((SQLiteCursor) cursor).getWindow();
-						if (cw.getNumRows() > 0) {							
-							hits.get(count).setHitString(cursor.getString(1));
-						} else {
-							Log.w("hitString for hitId "+ hits.get(count).getHitId() +
-									" too large.  Hit will be deleted.");
-						}
-					} else {
-						hits.get(count).setHitString(cursor.getString(1));
-					}
-					count++;
-				} while (cursor.moveToNext());
-			}
-			return hits;
+			cursor = db.rawQuery(OLDEST_HIT_TIME_IN_LANE,
+					new String[] { Integer.toString(priority.ordinal()) });
+			return cursor.moveToFirst() ? cursor.getLong(0) : 0;
 		} catch (SQLiteException e) {
-			Log.w("error in peekHits fetching hitString: " + e.getMessage());
-
-			ArrayList<Hit> partialHits = new ArrayList<Hit>();
-			boolean foundOneBadHit = false;
-			for (Hit hit : hits) {
-				if (TextUtils.isEmpty(hit.getHitParams())) {
-					if (foundOneBadHit) {
-						break;
-					}
-					foundOneBadHit = true;
-				}
-				partialHits.add(hit);
-			}
-			return partialHits;
+			Log.w("Error reading oldest pending hit: " + e.getMessage());
+			return 0;
 		} finally {
-			if (cursor != null) {				
+			if (cursor != null) {
 				cursor.close();
 			}
 		}
 	}
 
+	private void decodeHitBlob(Hit hit, byte[] blob) {
+		if (mBlobDecoder == null) {
+			mBlobDecoder = new HitEncoder();
+		}
+		String hitUrl = CompactHitCodec.decode(blob, mBlobDecoder.reset());
+		if (hitUrl == null) {
+			Log.w("hit_blob for hitId " + hit.getHitId() + " is corrupt.  Hit will be deleted.");
+			hit.setHitString(null);
+			return;
+		}
+		hit.setHitUrl(hitUrl);
+		hit.setHitString(mBlobDecoder.toString());
+	}
+
 	@VisibleForTesting
 	void setLastDeleteStaleHitsTime(long timeInMilliseconds) {
 		mLastDeleteStaleHitsTime = timeInMilliseconds;
 	}
 
-	int deleteStaleHits() {
+	/**
+	 * Schedules a maintenance tick if the daily stale-hit sweep is due or the
+	 * store holds more than MAX_NUM_STORED_HITS. Eviction never runs on the
+	 * insert path itself, so the store may briefly exceed its cap.
+	 */
+	private void scheduleMaintenanceIfNeeded() {
 		long now = mClock.currentTimeMillis();
+		if (now > mLastDeleteStaleHitsTime + AnalyticsConstants.MILLISECONDS_PER_DAY) {
+			mLastDeleteStaleHitsTime = now;
+			mStaleSweepPending = true;
+		}
+		if (mMaintenanceTask != null) {
+			return;
+		}
+		if (mStaleSweepPending || getNumStoredHits() > AnalyticsConstants.MAX_NUM_STORED_HITS) {
+			mMaintenanceTask = new TimerTask() {
+				public void run() {
+					runMaintenance();
+				}
+			};
+			getTimer().schedule(mMaintenanceTask,
+					AnalyticsConstants.STORE_MAINTENANCE_INTERVAL_MS);
+		}
+	}
 
-		if (now <= mLastDeleteStaleHitsTime + AnalyticsConstants.MILLISECONDS_PER_DAY) {
-			return 0;
+	/**
+	 * Deletes at most STORE_MAINTENANCE_DELETE_BUDGET hits, stale hits first
+	 * and then the oldest hits over the MAX_NUM_STORED_HITS cap, deletes the
+	 * parameter sets no hit refers to any more, and schedules another tick if
+	 * work remains. Returns the number of hits evicted.
+	 */
+	int runMaintenance() {
+		int numEvicted;
+		synchronized (this) {
+			numEvicted = evictHits();
+		}
+		reportStoreState();
+		return numEvicted;
+	}
+
+	private int evictHits() {
+		mMaintenanceTask = null;
+		int budget = AnalyticsConstants.STORE_MAINTENANCE_DELETE_BUDGET;
+		int staleHits = 0;
+		boolean staleSweepDone = false;
+		if (mStaleSweepPending) {
+			staleHits = deleteStaleHits(budget);
+			if (staleHits < budget) {
+				mStaleSweepPending = false;
+				staleSweepDone = true;
+			}
+			budget -= staleHits;
+		}
+		int overflowHits = 0;
+		int hitsOverLimit = getNumStoredHits() - AnalyticsConstants.MAX_NUM_STORED_HITS;
+		if (budget > 0 && hitsOverLimit > 0) {
+			overflowHits = evictOverflowHits(Math.min(budget, hitsOverLimit));
+		}
+		// Also drops the sets left behind by hits deleted after dispatch.
+		if (staleSweepDone || overflowHits > 0) {
+			SQLiteDatabase db = getWritableDatabase(
+					"Error opening database for store maintenance");
+			if (db != null) {
+				deleteUnusedParamSets(db);
+			}
+		}
+		if (staleHits + overflowHits > 0) {
+			mNumStaleHitsEvicted += staleHits;
+			mNumOverflowHitsEvicted += overflowHits;
+			Log.vDebug("Store maintenance evicted " + staleHits + " stale and "
+					+ overflowHits + " overflow hits");
+			setStoreIsEmpty(getNumStoredHits() == 0);
+		}
+		scheduleMaintenanceIfNeeded();
+		return staleHits + overflowHits;
+	}
+
+	long getNumStaleHitsEvicted() {
+		return mNumStaleHitsEvicted;
+	}
+
+	long getNumOverflowHitsEvicted() {
+		return mNumOverflowHitsEvicted;
+	}
+
+	public synchronized long getNumHitsEvicted(HitPriority priority) {
+		return mNumHitsEvicted[priority.ordinal()];
+	}
+
+	/**
+	 * Once the store is over MAX_NUM_STORED_HITS, hits of this priority
+	 * beyond maxHits are evicted before any other hits. 0 removes the quota.
+	 */
+	public synchronized void setEvictionQuota(HitPriority priority, int maxHits) {
+		mEvictionQuotas[priority.ordinal()] = Math.max(0, maxHits);
+	}
+
+	/**
+	 * Evicts up to maxHits hits: first the oldest hits of any priority that
+	 * is over its quota, then the oldest hits of the lowest priority.
+	 */
+	private int evictOverflowHits(int maxHits) {
+		int numEvicted = 0;
+		HitPriority[] priorities = HitPriority.values();
+		int[] numHitsByPriority = null;
+		for (int i = 0; i < priorities.length && numEvicted < maxHits; i++) {
+			if (mEvictionQuotas[i] == 0) {
+				continue;
+			}
+			if (numHitsByPriority == null) {
+				numHitsByPriority = queryNumHitsByPriority();
+			}
+			int hitsOverQuota = numHitsByPriority[i] - mEvictionQuotas[i];
+			if (hitsOverQuota > 0) {
+				numEvicted += deleteOldestHits(priorities[i],
+						Math.min(hitsOverQuota, maxHits - numEvicted));
+			}
 		}
-		mLastDeleteStaleHitsTime = now;
-		SQLiteDatabase db = getWritableDatabase("Error opening database for deleteStaleHits");
+		for (int i = 0; i < priorities.length && numEvicted < maxHits; i++) {
+			numEvicted += deleteOldestHits(priorities[i], maxHits - numEvicted);
+		}
+		return numEvicted;
+	}
+
+	private int[] queryNumHitsByPriority() {
+		int[] numHits = new int[HitPriority.values().length];
+		SQLiteDatabase db = getWritableDatabase("Error opening database for store maintenance");
 		if (db == null) {
-			return 0;
+			return numHits;
 		}
+		Cursor cursor = null;
+		try {
+			cursor = db.rawQuery(String.format("SELECT %s, COUNT(*) FROM %s GROUP BY %s",
+					HIT_PRIORITY, HITS_TABLE, HIT_PRIORITY), null);
+			while (cursor.moveToNext()) {
+				int priority = cursor.getInt(0);
+				if (priority >= 0 && priority < numHits.length) {
+					numHits[priority] = cursor.getInt(1);
+				}
+			}
+		} catch (SQLiteException e) {
+			Log.w("Error counting hits by priority: " + e.getMessage());
+		} finally {
+			if (cursor != null) {
+				cursor.close();
+			}
+		}
+		return numHits;
+	}
+
+	int deleteStaleHits(int maxHits) {
 		long lastGoodTime = mClock.currentTimeMillis() - AnalyticsConstants.MILLISECONDS_PER_MONTH;
-		int rslt = db.delete(HITS_TABLE, "HIT_TIME < ?", new String[] { Long.toString(lastGoodTime) });
-		mListener.reportStoreIsEmpty(getNumStoredHits() == 0);
-		return rslt;
+		return deleteHitsWhere(String.format(
+				"%s IN (SELECT %s FROM %s WHERE %s < ? ORDER BY %s ASC LIMIT ?)",
+				HIT_ID, HIT_ID, HITS_TABLE, HIT_TIME, HIT_ID),
+				new String[] { Long.toString(lastGoodTime), Integer.toString(maxHits) });
 	}
 
+	private int deleteOldestHits(HitPriority priority, int maxHits) {
+		int numDeleted = deleteHitsWhere(String.format(
+				"%s IN (SELECT %s FROM %s WHERE %s = ? ORDER BY %s ASC LIMIT ?)",
+				HIT_ID, HIT_ID, HITS_TABLE, HIT_PRIORITY, HIT_ID),
+				new String[] { Integer.toString(priority.ordinal()),
+						Integer.toString(maxHits) });
+		mNumHitsEvicted[priority.ordinal()] += numDeleted;
+		return numDeleted;
+	}
+
+	private int deleteHitsWhere(String whereClause, String[] whereArgs) {
+		SQLiteDatabase db = getWritableDatabase("Error opening database for store maintenance");
+		if (db == null) {
+			return 0;
+		}
+		try {
+			db.beginTransaction();
+			try {
+				int numDeleted = deleteRows(db, whereClause, whereArgs);
+				db.setTransactionSuccessful();
+				return numDeleted;
+			} finally {
+				db.endTransaction();
+			}
+		} catch (SQLiteException e) {
+			Log.w("Error evicting hits: " + e.getMessage());
+			invalidateNumStoredHits();
+			return 0;
+		}
+	}
+
+	/**
+	 * Deletes the given hits. Runs of consecutive hit ids are deleted with a
+	 * single BETWEEN predicate, isolated ids with an IN list, and statements
+	 * are split so no more than MAX_SQL_VARIABLES parameters are bound at a
+	 * time. All statements run in one transaction.
+	 */
 	public void deleteHits(Collection<Hit> hits) {
 		if (hits == null) {
 			throw new NullPointerException("hits cannot be null");
 		}
+		synchronized (this) {
+			removeHits(hits);
+		}
+		reportStoreState();
+	}
+
+	private void removeHits(Collection<Hit> hits) {
 		if (hits.isEmpty()) {
 			return;
 		}
@@ -335,74 +987,257 @@ class PersistentAnalyticsStore implements AnalyticsStore {
 		if (db == null) {
 			return;
 		}
-		String[] ids = new String[hits.size()];
-		String whereClause = String.format("HIT_ID in (%s)",
-				TextUtils.join(",", Collections.nCopies(ids.length, "?")));
-
+		long[] ids = new long[hits.size()];
 		int i = 0;
 		for (Hit hit : hits) {			
-			ids[i++] = Long.toString(hit.getHitId());
+			ids[i++] = hit.getHitId();
 		}
+		Arrays.sort(ids);
+
+		int numDeleted = 0;
 		try {
-			db.delete(HITS_TABLE, whereClause, ids);
-			mListener.reportStoreIsEmpty(getNumStoredHits() == 0);
+			db.beginTransaction();
+			try {
+				List<String> rangeArgs = new ArrayList<String>();
+				List<String> idArgs = new ArrayList<String>();
+				i = 0;
+				while (i < ids.length) {
+					int end = i;
+					while (end + 1 < ids.length && ids[end + 1] <= ids[end] + 1) {
+						end++;
+					}
+					if (rangeArgs.size() + idArgs.size() + 2 > MAX_SQL_VARIABLES) {
+						numDeleted += deleteHitIds(db, rangeArgs, idArgs);
+						rangeArgs.clear();
+						idArgs.clear();
+					}
+					if (ids[end] == ids[i]) {
+						idArgs.add(Long.toString(ids[i]));
+					} else {
+						rangeArgs.add(Long.toString(ids[i]));
+						rangeArgs.add(Long.toString(ids[end]));
+					}
+					i = end + 1;
+				}
+				numDeleted += deleteHitIds(db, rangeArgs, idArgs);
+				db.setTransactionSuccessful();
+			} finally {
+				db.endTransaction();
+			}
+			setStoreIsEmpty(getNumStoredHits() == 0);
 		} catch (SQLiteException e) {
 			Log.w("Error deleting hit " + hits);
+			invalidateNumStoredHits();
+		}
+	}
+
+	private int deleteHitIds(SQLiteDatabase db, List<String> rangeArgs, List<String> idArgs) {
+		if (rangeArgs.isEmpty() && idArgs.isEmpty()) {
+			return 0;
+		}
+		StringBuilder whereClause = new StringBuilder();
+		for (int i = 0; i < rangeArgs.size(); i += 2) {
+			if (whereClause.length() > 0) {
+				whereClause.append(" OR ");
+			}
+			whereClause.append(HIT_ID).append(" BETWEEN ? AND ?");
+		}
+		if (!idArgs.isEmpty()) {
+			if (whereClause.length() > 0) {
+				whereClause.append(" OR ");
+			}
+			whereClause.append(String.format("%s in (%s)", HIT_ID,
+					TextUtils.join(",", Collections.nCopies(idArgs.size(), "?"))));
 		}
+		List<String> args = new ArrayList<String>(rangeArgs);
+		args.addAll(idArgs);
+		return deleteRows(db, whereClause.toString(), args.toArray(new String[args.size()]));
 	}
 
+	/**
+	 * Deletes the matching hits and takes them off the cached counts. The
+	 * rows are counted with the same where clause just before they are
+	 * deleted, so only the deleted rows are read; callers must hold a
+	 * transaction so that both statements see the same rows.
+	 */
+	private int deleteRows(SQLiteDatabase db, String whereClause, String[] whereArgs) {
+		StoredHitCounts deleted = null;
+		if (mHitCounts != null) {
+			deleted = queryHitCounts(db, whereClause, whereArgs);
+		}
+		int numDeleted = db.delete(HITS_TABLE, whereClause, whereArgs);
+		if (mHitCounts != null) {
+			if (deleted.getNumHits() == numDeleted) {
+				mHitCounts.subtract(deleted);
+			} else {
+				invalidateNumStoredHits();
+			}
+		}
+		return numDeleted;
+	}
+
+	/**
+	 * Returns the cached row count, counting the table only when the cache is
+	 * unknown (first use, database reopened, or after a SQLite error).
+	 */
 	int getNumStoredHits() {
-		int numStoredHits = 0;
-		SQLiteDatabase db = getWritableDatabase("Error opening database for requestNumHitsPending");
+		StoredHitCounts counts = getHitCounts();
+		return counts == null ? 0 : counts.getNumHits();
+	}
+
+	/**
+	 * Returns the cached hit counts, or null if they are unknown and the
+	 * table could not be read. The table is only scanned when the counts are
+	 * unknown; afterwards every insert and delete keeps them up to date.
+	 */
+	private StoredHitCounts getHitCounts() {
+		if (mHitCounts == null) {
+			SQLiteDatabase db = getWritableDatabase(
+					"Error opening database for requestNumHitsPending");
+			if (db == null) {
+				return null;
+			}
+			try {
+				mHitCounts = queryHitCounts(db, null, null);
+			} catch (SQLiteException e) {
+				Log.w("Error getting numStoredHits");
+			}
+		}
+		return mHitCounts;
+	}
+
+	private void invalidateNumStoredHits() {
+		mHitCounts = null;
+	}
+
+	private StoredHitCounts queryHitCounts(SQLiteDatabase db, String whereClause,
+			String[] whereArgs) {
+		StoredHitCounts counts = new StoredHitCounts();
+		String query = COUNT_HITS
+				+ (whereClause == null ? "" : " WHERE " + whereClause)
+				+ COUNT_HITS_GROUP_BY;
+		Cursor cursor = db.rawQuery(query, whereArgs);
+		try {
+			while (cursor.moveToNext()) {
+				counts.add(cursor.getString(0), cursor.getString(1), cursor.getInt(2),
+						cursor.getInt(3), cursor.getLong(4));
+			}
+		} finally {
+			cursor.close();
+		}
+		return counts;
+	}
+
+	/**
+	 * Returns a snapshot of the store. Counts are kept up to date as hits are
+	 * written and deleted; only the hit times are read from the database,
+	 * through the hit_time and hit_priority indexes.
+	 */
+	public StoreStats getStats() {
+		StoreStats stats;
+		synchronized (this) {
+			flushPendingHits();
+			StoredHitCounts counts = getHitCounts();
+			if (counts == null) {
+				counts = new StoredHitCounts();
+			}
+			long[] oldestHitTimeByPriority = new long[HitPriority.values().length];
+			for (HitPriority priority : HitPriority.values()) {
+				oldestHitTimeByPriority[priority.ordinal()] = queryOldestHitTime(priority);
+			}
+			stats = new StoreStats(counts,
+					queryHitTime("SELECT MIN(hit_time) FROM hits2"),
+					queryHitTime("SELECT MAX(hit_time) FROM hits2"),
+					oldestHitTimeByPriority, mNumHitsEvicted, mNumStaleHitsEvicted,
+					mLastDispatchTime, mLastDispatchNumHits, mLastDispatchNumSent);
+		}
+		reportStoreState();
+		return stats;
+	}
+
+	private long queryHitTime(String query) {
+		SQLiteDatabase db = getWritableDatabase("Error opening database for getStats");
 		if (db == null) {
-			return numStoredHits;
+			return 0;
 		}
 		Cursor cursor = null;
 		try {
-			cursor = db.rawQuery("SELECT COUNT(*) from hits2", null);
-			if (cursor.moveToFirst()) {				
-				numStoredHits = (int) cursor.getLong(0);
-			}
+			cursor = db.rawQuery(query, null);
+			return cursor.moveToFirst() ? cursor.getLong(0) : 0;
 		} catch (SQLiteException e) {
-			Log.w("Error getting numStoredHits");
+			Log.w("Error reading hit time: " + e.getMessage());
+			return 0;
 		} finally {
 			if (cursor != null) {
 				cursor.close();
 			}
 		}
-		return numStoredHits;
 	}
 
+	/**
+	 * Sends one batch of stored hits. The hits are read and the sent ones
+	 * deleted under the store lock, but the lock is released while they are
+	 * sent, so putHit and the store's timers are not held up by the network.
+	 */
 	public void dispatch() {
-		Log.vDebug("dispatch running...");
-
-		if (!mDispatcher.okToDispatch()) {
-			return;
+		boolean dispatchAgain = false;
+		synchronized (mDispatchLock) {
+			Log.vDebug("dispatch running...");
+			List<Hit> hits = null;
+			if (mDispatcher.okToDispatch()) {
+				synchronized (this) {
+					flushPendingHits();
+					hits = peekHits(mDispatcher.getMaxBatchBytes() > 0 ?
+							AnalyticsConstants.MAX_BATCHED_HITS_PER_DISPATCH
+							: AnalyticsConstants.MAX_REQUESTS_PER_DISPATCH);
+					if (hits.isEmpty()) {
+						Log.vDebug("...nothing to dispatch");
+						setStoreIsEmpty(true);
+					}
+				}
+			}
+			if (hits != null && !hits.isEmpty()) {
+				List<Hit> sentHits = mDispatcher.dispatchHits(hits);
+				Log.vDebug("sent " + sentHits.size() + " of " + hits.size() + " hits");
+				synchronized (this) {
+					mLastDispatchTime = mClock.currentTimeMillis();
+					mLastDispatchNumHits = hits.size();
+					mLastDispatchNumSent = sentHits.size();
+					removeHits(sentHits);
+					dispatchAgain = sentHits.size() == hits.size() && getNumStoredHits() > 0;
+				}
+			}
 		}
-
-		List<Hit> hits = peekHits(AnalyticsConstants.MAX_REQUESTS_PER_DISPATCH);
-		if (hits.isEmpty()) {
-			Log.vDebug("...nothing to dispatch");
-			mListener.reportStoreIsEmpty(true);
-			return;
+		reportStoreState();
+		if (dispatchAgain) {
+			GAServiceManager.getInstance().dispatch();
 		}
-		int hitsDispatched = mDispatcher.dispatchHits(hits);
-		Log.vDebug("sent " + hitsDispatched + " of " + hits.size() + " hits");
-
-		deleteHits(hits.subList(0, Math.min(hitsDispatched, hits.size())));
+	}
 
-		if (hitsDispatched == hits.size() && getNumStoredHits() > 0) {			
-			GAServiceManager.getInstance().dispatch();
+	/**
+	 * Sends hits that are not in this store through its dispatcher and
+	 * returns the ones that were sent.
+	 */
+	public List<Hit> dispatchHits(List<Hit> hits) {
+		if (!mDispatcher.okToDispatch()) {
+			return Collections.emptyList();
 		}
+		return mDispatcher.dispatchHits(hits);
 	}
 
 	public void close() {
-		try {
-			mDbHelper.getWritableDatabase().close();
-		} catch (SQLiteException e) {
-			Log.w("Error opening database for close");
-			return;
+		synchronized (this) {
+			flushPendingHits();
+			mTimer = cancelTimer(mTimer);
+			mMaintenanceTask = null;
+			mDispatcher.shutdown();
+			try {
+				mDbHelper.getWritableDatabase().close();
+			} catch (SQLiteException e) {
+				Log.w("Error opening database for close");
+			}
 		}
+		reportStoreState();
 	}
 
 	@VisibleForTesting
@@ -421,6 +1256,37 @@ class PersistentAnalyticsStore implements AnalyticsStore {
 		return db;
 	}
 
+	private static class PendingHit {
+		final String mHitString;
+		final long mHitTime;
+		final String mHitUrl;
+		final long mAppId;
+		final byte[] mHitBlob;
+		final Long mParamSetId;
+		final HitPriority mPriority;
+		final String mHitType;
+		final String mTrackingId;
+
+		PendingHit(String hitString, long hitTime, String hitUrl, long appId,
+				byte[] hitBlob, Long paramSetId, HitPriority priority,
+				String hitType, String trackingId) {
+			mHitString = hitString;
+			mHitTime = hitTime;
+			mHitUrl = hitUrl;
+			mAppId = appId;
+			mHitBlob = hitBlob;
+			mParamSetId = paramSetId;
+			mPriority = priority;
+			mHitType = hitType;
+			mTrackingId = trackingId;
+		}
+
+		long getNumBytes() {
+			return mHitUrl.length() + mHitString.length()
+					+ (mHitBlob == null ? 0 : mHitBlob.length);
+		}
+	}
+
 	@VisibleForTesting
 	class AnalyticsDatabaseHelper extends SQLiteOpenHelper {
 		private boolean mBadDatabase;
@@ -435,7 +1301,7 @@ class PersistentAnalyticsStore implements AnalyticsStore {
 		}
 
 		AnalyticsDatabaseHelper(Context context, String databaseName) {
-			super(context, databaseName, null, 1);
+			super(context, databaseName, null, DATABASE_VERSION);
 		}
 
 		private boolean tablePresent(String table, SQLiteDatabase db) {
@@ -479,6 +1345,10 @@ class PersistentAnalyticsStore implements AnalyticsStore {
 		}
 
 		public void onOpen(SQLiteDatabase db) {
+			invalidateNumStoredHits();
+			// The file may be new, for example after a corrupt one was deleted,
+			// so parameter sets seen before may not be in it.
+			mKnownParamSets.clear();
 			if (Build.VERSION.SDK_INT < 15) {
 				Cursor cursor = db.rawQuery("PRAGMA journal_mode=memory", null);
 				try {
@@ -492,6 +1362,10 @@ class PersistentAnalyticsStore implements AnalyticsStore {
 			} else {				
 				validateColumnsPresent(db);
 			}
+			db.execSQL(CREATE_PARAM_SETS_TABLE);
+			db.execSQL(CREATE_HIT_TIME_INDEX);
+			db.execSQL(CREATE_HIT_APP_ID_INDEX);
+			db.execSQL(CREATE_HIT_PRIORITY_INDEX);
 		}
 
 		private void validateColumnsPresent(SQLiteDatabase db) {
@@ -515,6 +1389,16 @@ class PersistentAnalyticsStore implements AnalyticsStore {
 				throw new SQLiteException("Database column missing");
 			}
 
+			// Added by the version 2 migration in onUpgrade.
+			if (!columns.remove(HIT_BLOB) ||
+				!columns.remove(HIT_PARAM_SET) ||
+				!columns.remove(HIT_PRIORITY) ||
+				!columns.remove(HIT_TYPE) ||
+				!columns.remove(HIT_TRACKING_ID))
+			{
+				throw new SQLiteException("Database column missing");
+			}
+
 			boolean needsAppId = !columns.remove(HIT_APP_ID);
 
 			if (!columns.isEmpty()) {
@@ -525,10 +1409,44 @@ class PersistentAnalyticsStore implements AnalyticsStore {
 			}
 		}
 
+		private Set<String> getColumnNames(String table, SQLiteDatabase db) {
+			Cursor c = db.rawQuery("SELECT * FROM " + table + " WHERE 0", null);
+			try {
+				return new HashSet<String>(Arrays.asList(c.getColumnNames()));
+			} finally {
+				c.close();
+			}
+		}
+
 		public void onCreate(SQLiteDatabase db) {
 			FutureApis.setOwnerOnlyReadWrite(db.getPath());
 		}
 
-		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {}
+		/**
+		 * Version 2 adds the hit_blob, hit_param_set, hit_priority, hit_type
+		 * and hit_tracking_id columns. Runs before onOpen, which creates the
+		 * table if it is missing and then requires every column.
+		 */
+		public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+			if (oldVersion < 2 && tablePresent(HITS_TABLE, db)) {
+				Set<String> columns = getColumnNames(HITS_TABLE, db);
+				if (!columns.contains(HIT_BLOB)) {
+					db.execSQL("ALTER TABLE hits2 ADD COLUMN hit_blob BLOB");
+				}
+				if (!columns.contains(HIT_PARAM_SET)) {
+					db.execSQL("ALTER TABLE hits2 ADD COLUMN hit_param_set INTEGER");
+				}
+				if (!columns.contains(HIT_PRIORITY)) {
+					db.execSQL("ALTER TABLE hits2 ADD COLUMN hit_priority INTEGER NOT NULL DEFAULT "
+							+ HitPriority.NORMAL.ordinal());
+				}
+				if (!columns.contains(HIT_TYPE)) {
+					db.execSQL("ALTER TABLE hits2 ADD COLUMN hit_type TEXT");
+				}
+				if (!columns.contains(HIT_TRACKING_ID)) {
+					db.execSQL("ALTER TABLE hits2 ADD COLUMN hit_tracking_id TEXT");
+				}
+			}
+		}
 	}
 }
\ No newline at end of file
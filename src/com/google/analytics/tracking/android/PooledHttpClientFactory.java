@@ -0,0 +1,161 @@
+package com.google.analytics.tracking.android;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpVersion;
+import org.apache.http.client.HttpClient;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
+import org.apache.http.conn.scheme.LayeredSocketFactory;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.scheme.SocketFactory;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.params.HttpProtocolParams;
+
+import com.google.android.gms.common.util.VisibleForTesting;
+
+/**
+ * Hands out a single keep-alive HttpClient backed by a connection pool. The
+ * client survives across dispatch cycles until it has been unused for longer
+ * than the idle timeout, at which point it is shut down and replaced.
+ */
+class PooledHttpClientFactory implements HttpClientFactory {
+	private static final int MAX_CONNECTIONS_PER_ROUTE = 2;
+	private static final int MAX_TOTAL_CONNECTIONS = 4;
+	private final long mIdleTimeoutMillis;
+	private Clock mClock;
+	private DefaultHttpClient mClient;
+	private long mLastUsedTime;
+	private final AtomicInteger mConnectionsOpened = new AtomicInteger();
+
+	PooledHttpClientFactory() {
+		this(AnalyticsConstants.POOLED_CONNECTION_IDLE_TIMEOUT_MS);
+	}
+
+	PooledHttpClientFactory(long idleTimeoutMillis) {
+		mIdleTimeoutMillis = idleTimeoutMillis;
+		mClock = new Clock() {
+			public long currentTimeMillis() {
+				return System.currentTimeMillis();
+			}
+		};
+	}
+
+	@VisibleForTesting
+	void setClock(Clock clock) {
+		mClock = clock;
+	}
+
+	public synchronized HttpClient newInstance() {
+		long now = mClock.currentTimeMillis();
+		if (mClient != null && now - mLastUsedTime > mIdleTimeoutMillis) {
+			Log.vDebug("pooled HttpClient idle too long, recreating");
+			shutdown();
+		}
+		if (mClient == null) {
+			mClient = createClient();
+		}
+		mLastUsedTime = now;
+		return mClient;
+	}
+
+	/**
+	 * Called at the end of a dispatch cycle. Drops pooled connections that
+	 * have sat idle beyond the timeout, but keeps recently used ones open for
+	 * the next cycle.
+	 */
+	synchronized void releaseIdleConnections() {
+		if (mClient != null) {
+			ClientConnectionManager cm = mClient.getConnectionManager();
+			cm.closeExpiredConnections();
+			cm.closeIdleConnections(mIdleTimeoutMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	synchronized void shutdown() {
+		if (mClient != null) {
+			mClient.getConnectionManager().shutdown();
+			mClient = null;
+		}
+	}
+
+	/**
+	 * Returns the number of TCP connections opened since this factory was
+	 * created. Requests that did not open a connection reused a pooled one.
+	 */
+	int getConnectionsOpened() {
+		return mConnectionsOpened.get();
+	}
+
+	private DefaultHttpClient createClient() {
+		HttpParams params = new BasicHttpParams();
+		HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+		HttpConnectionParams.setStaleCheckingEnabled(params, true);
+		ConnManagerParams.setMaxTotalConnections(params, MAX_TOTAL_CONNECTIONS);
+		ConnManagerParams.setMaxConnectionsPerRoute(params,
+				new ConnPerRouteBean(MAX_CONNECTIONS_PER_ROUTE));
+
+		SchemeRegistry registry = new SchemeRegistry();
+		registry.register(new Scheme("http",
+				new CountingSocketFactory(PlainSocketFactory.getSocketFactory()), 80));
+		registry.register(new Scheme("https",
+				new CountingLayeredSocketFactory(SSLSocketFactory.getSocketFactory()), 443));
+
+		return new DefaultHttpClient(
+				new ThreadSafeClientConnManager(params, registry), params);
+	}
+
+	private class CountingSocketFactory implements SocketFactory {
+		private final SocketFactory mDelegate;
+
+		CountingSocketFactory(SocketFactory delegate) {
+			mDelegate = delegate;
+		}
+
+		public Socket createSocket() throws IOException {
+			return mDelegate.createSocket();
+		}
+
+		public Socket connectSocket(Socket sock, String host, int port,
+				InetAddress localAddress, int localPort, HttpParams params)
+				throws IOException, UnknownHostException, ConnectTimeoutException {
+			Socket socket = mDelegate.connectSocket(sock, host, port,
+					localAddress, localPort, params);
+			mConnectionsOpened.incrementAndGet();
+			return socket;
+		}
+
+		public boolean isSecure(Socket sock) {
+			return mDelegate.isSecure(sock);
+		}
+	}
+
+	private class CountingLayeredSocketFactory extends CountingSocketFactory
+			implements LayeredSocketFactory {
+		private final LayeredSocketFactory mLayeredDelegate;
+
+		CountingLayeredSocketFactory(LayeredSocketFactory delegate) {
+			super(delegate);
+			mLayeredDelegate = delegate;
+		}
+
+		public Socket createSocket(Socket socket, String host, int port,
+				boolean autoClose) throws IOException, UnknownHostException {
+			return mLayeredDelegate.createSocket(socket, host, port, autoClose);
+		}
+	}
+}
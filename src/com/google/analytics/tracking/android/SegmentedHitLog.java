@@ -0,0 +1,451 @@
+package com.google.analytics.tracking.android;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only hit log made of fixed-size, memory-mapped segment files.
+ *
+ * Each record is stored as [payload length][CRC32 of payload][payload] and
+ * gets a sequence number that increases across segments. Reading never
+ * removes anything; acknowledging a sequence number moves the persisted read
+ * cursor past it and deletes segments whose records have all been
+ * acknowledged. On open, a record with a bad length or checksum is treated
+ * as the end of its segment, which drops a torn write at the tail.
+ *
+ * Uses only java.io/java.nio so it can be exercised on a desktop JVM.
+ */
+class SegmentedHitLog {
+	static final int DEFAULT_SEGMENT_SIZE = 256 * 1024;
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final String CURSOR_FILE = "cursor";
+	private static final int RECORD_HEADER_SIZE = 8;
+	private static final int PAYLOAD_FIXED_SIZE = 8 + 8 + 8 + 4 + 4;
+
+	private final File mDirectory;
+	private final int mSegmentSize;
+	private final List<Segment> mSegments = new ArrayList<Segment>();
+	private final RandomAccessFile mCursorFile;
+	private long mAcknowledgedSeq;
+	private long mNextSeq;
+	private int mReadSegment;
+	private int mReadOffset;
+	private int mSize;
+
+	SegmentedHitLog(File directory) throws IOException {
+		this(directory, DEFAULT_SEGMENT_SIZE);
+	}
+
+	SegmentedHitLog(File directory, int segmentSize) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create hit log directory " + directory);
+		}
+		mDirectory = directory;
+		mSegmentSize = segmentSize;
+		mCursorFile = new RandomAccessFile(new File(directory, CURSOR_FILE), "rw");
+		mAcknowledgedSeq = mCursorFile.length() >= 8 ? mCursorFile.readLong() : 0;
+		mNextSeq = mAcknowledgedSeq + 1;
+		recover();
+	}
+
+	static class Record {
+		final long mSeq;
+		final long mHitTime;
+		final long mAppId;
+		final String mHitUrl;
+		final String mHitString;
+
+		Record(long seq, long hitTime, long appId, String hitUrl, String hitString) {
+			mSeq = seq;
+			mHitTime = hitTime;
+			mAppId = appId;
+			mHitUrl = hitUrl;
+			mHitString = hitString;
+		}
+	}
+
+	/**
+	 * Appends a record and returns its sequence number, or -1 if the record
+	 * is larger than a segment.
+	 */
+	synchronized long append(long hitTime, long appId, String hitUrl,
+			String hitString) throws IOException {
+		byte[] url = toUtf8(hitUrl);
+		byte[] hit = toUtf8(hitString);
+		int payloadLength = PAYLOAD_FIXED_SIZE + url.length + hit.length;
+		int recordLength = RECORD_HEADER_SIZE + payloadLength;
+		if (recordLength > mSegmentSize) {
+			return -1;
+		}
+		Segment segment = mSegments.isEmpty() ? null : mSegments.get(mSegments.size() - 1);
+		if (segment == null || segment.mWritePosition + recordLength > mSegmentSize) {
+			segment = openSegment(mNextSeq, true);
+			mSegments.add(segment);
+		}
+
+		long seq = mNextSeq++;
+		ByteBuffer payload = ByteBuffer.allocate(payloadLength);
+		payload.putLong(seq);
+		payload.putLong(hitTime);
+		payload.putLong(appId);
+		payload.putInt(url.length);
+		payload.put(url);
+		payload.putInt(hit.length);
+		payload.put(hit);
+		CRC32 crc = new CRC32();
+		crc.update(payload.array(), 0, payloadLength);
+
+		MappedByteBuffer buffer = segment.mBuffer;
+		int position = segment.mWritePosition;
+		buffer.putInt(position + 4, (int) crc.getValue());
+		ByteBuffer target = buffer.duplicate();
+		target.position(position + RECORD_HEADER_SIZE);
+		target.put(payload.array(), 0, payloadLength);
+		if (position + recordLength + 4 <= mSegmentSize) {
+			buffer.putInt(position + recordLength, 0);
+		}
+		// The length is written last so a partially written record reads as
+		// the end of the segment.
+		buffer.putInt(position, payloadLength);
+		segment.mWritePosition = position + recordLength;
+		segment.mLastSeq = seq;
+		segment.mDirty = true;
+		mSize++;
+		return seq;
+	}
+
+	/**
+	 * Reads up to maxRecords unacknowledged records, oldest first, without
+	 * moving the read cursor.
+	 */
+	synchronized List<Record> read(int maxRecords) {
+		List<Record> records = new ArrayList<Record>();
+		int segmentIndex = mReadSegment;
+		int offset = mReadOffset;
+		while (records.size() < maxRecords && segmentIndex < mSegments.size()) {
+			Segment segment = mSegments.get(segmentIndex);
+			if (offset >= segment.mWritePosition) {
+				segmentIndex++;
+				offset = 0;
+				continue;
+			}
+			int payloadLength = segment.mBuffer.getInt(offset);
+			records.add(decode(segment.mBuffer, offset + RECORD_HEADER_SIZE, payloadLength));
+			offset += RECORD_HEADER_SIZE + payloadLength;
+		}
+		return records;
+	}
+
+	/**
+	 * Marks every record up to and including seq as consumed, persists the
+	 * cursor and deletes segments that no longer hold unread records.
+	 */
+	synchronized void acknowledge(long seq) throws IOException {
+		if (seq <= mAcknowledgedSeq) {
+			return;
+		}
+		while (mReadSegment < mSegments.size()) {
+			Segment segment = mSegments.get(mReadSegment);
+			if (mReadOffset >= segment.mWritePosition) {
+				if (mReadSegment == mSegments.size() - 1) {
+					break;
+				}
+				mReadSegment++;
+				mReadOffset = 0;
+				continue;
+			}
+			long recordSeq = segment.mBuffer.getLong(mReadOffset + RECORD_HEADER_SIZE);
+			if (recordSeq > seq) {
+				break;
+			}
+			mReadOffset += RECORD_HEADER_SIZE + segment.mBuffer.getInt(mReadOffset);
+			mSize--;
+		}
+		mAcknowledgedSeq = Math.min(seq, mNextSeq - 1);
+		writeCursor();
+		while (mReadSegment > 0) {
+			deleteSegment(mSegments.remove(0));
+			mReadSegment--;
+		}
+	}
+
+	/**
+	 * Drops up to maxRecords of the oldest unread records, stopping at the
+	 * first record that is not older than minHitTime. Pass Long.MAX_VALUE to
+	 * drop regardless of age. Returns the number of records dropped.
+	 */
+	synchronized int dropOldest(int maxRecords, long minHitTime) throws IOException {
+		List<Record> records = read(maxRecords);
+		int dropped = 0;
+		long lastSeq = mAcknowledgedSeq;
+		for (Record record : records) {
+			if (record.mHitTime >= minHitTime) {
+				break;
+			}
+			lastSeq = record.mSeq;
+			dropped++;
+		}
+		acknowledge(lastSeq);
+		return dropped;
+	}
+
+	/**
+	 * Drops every unread record with the given app id and returns the number
+	 * dropped. The records that are kept are appended again and forced to
+	 * disk before the old ones are acknowledged, so a crash part way through
+	 * can leave a kept record in the log twice but never loses one.
+	 */
+	synchronized int dropApp(long appId) throws IOException {
+		List<Record> records = read(Integer.MAX_VALUE);
+		int dropped = 0;
+		for (Record record : records) {
+			if (record.mAppId == appId) {
+				dropped++;
+			}
+		}
+		if (dropped == 0) {
+			return 0;
+		}
+		for (Record record : records) {
+			if (record.mAppId != appId) {
+				append(record.mHitTime, record.mAppId, record.mHitUrl, record.mHitString);
+			}
+		}
+		force();
+		acknowledge(records.get(records.size() - 1).mSeq);
+		return dropped;
+	}
+
+	/**
+	 * Returns the count, payload size and hit time range of the unread
+	 * records. Only the record headers and fixed fields are read.
+	 */
+	synchronized Summary summarize() {
+		Summary summary = new Summary();
+		int segmentIndex = mReadSegment;
+		int offset = mReadOffset;
+		while (segmentIndex < mSegments.size()) {
+			Segment segment = mSegments.get(segmentIndex);
+			if (offset >= segment.mWritePosition) {
+				segmentIndex++;
+				offset = 0;
+				continue;
+			}
+			int payloadLength = segment.mBuffer.getInt(offset);
+			long hitTime = segment.mBuffer.getLong(offset + RECORD_HEADER_SIZE + 8);
+			summary.mNumRecords++;
+			summary.mNumBytes += payloadLength - PAYLOAD_FIXED_SIZE;
+			if (summary.mOldestHitTime == 0 || hitTime < summary.mOldestHitTime) {
+				summary.mOldestHitTime = hitTime;
+			}
+			summary.mNewestHitTime = Math.max(summary.mNewestHitTime, hitTime);
+			offset += RECORD_HEADER_SIZE + payloadLength;
+		}
+		return summary;
+	}
+
+	synchronized int size() {
+		return mSize;
+	}
+
+	/**
+	 * Discards every record. Sequence numbers keep increasing so ids handed
+	 * out before the clear are never reused.
+	 */
+	synchronized void clear() throws IOException {
+		for (Segment segment : mSegments) {
+			deleteSegment(segment);
+		}
+		mSegments.clear();
+		mReadSegment = 0;
+		mReadOffset = 0;
+		mSize = 0;
+		mAcknowledgedSeq = mNextSeq - 1;
+		writeCursor();
+	}
+
+	synchronized void force() {
+		for (Segment segment : mSegments) {
+			if (segment.mDirty) {
+				segment.mBuffer.force();
+				segment.mDirty = false;
+			}
+		}
+	}
+
+	synchronized void close() throws IOException {
+		force();
+		mCursorFile.close();
+	}
+
+	private void recover() throws IOException {
+		File[] files = mDirectory.listFiles();
+		List<Long> baseSeqs = new ArrayList<Long>();
+		if (files != null) {
+			for (File file : files) {
+				String name = file.getName();
+				if (name.endsWith(SEGMENT_SUFFIX)) {
+					try {
+						baseSeqs.add(Long.parseLong(
+								name.substring(0, name.length() - SEGMENT_SUFFIX.length())));
+					} catch (NumberFormatException e) {
+						file.delete();
+					}
+				}
+			}
+		}
+		Long[] sorted = baseSeqs.toArray(new Long[baseSeqs.size()]);
+		Arrays.sort(sorted);
+		for (Long baseSeq : sorted) {
+			Segment segment = openSegment(baseSeq.longValue(), false);
+			scan(segment);
+			if (segment.mLastSeq <= mAcknowledgedSeq) {
+				deleteSegment(segment);
+				continue;
+			}
+			mSegments.add(segment);
+			mNextSeq = Math.max(mNextSeq, segment.mLastSeq + 1);
+		}
+
+		mReadSegment = 0;
+		mReadOffset = 0;
+		if (!mSegments.isEmpty()) {
+			Segment first = mSegments.get(0);
+			while (mReadOffset < first.mWritePosition
+					&& first.mBuffer.getLong(mReadOffset + RECORD_HEADER_SIZE) <= mAcknowledgedSeq) {
+				mReadOffset += RECORD_HEADER_SIZE + first.mBuffer.getInt(mReadOffset);
+			}
+		}
+		mSize = 0;
+		for (int i = 0; i < mSegments.size(); i++) {
+			mSize += mSegments.get(i).mRecordCount;
+		}
+		mSize -= countRecords(mSegments.isEmpty() ? null : mSegments.get(0), mReadOffset);
+	}
+
+	private void scan(Segment segment) {
+		MappedByteBuffer buffer = segment.mBuffer;
+		int position = 0;
+		byte[] payload = new byte[0];
+		CRC32 crc = new CRC32();
+		while (position + RECORD_HEADER_SIZE + PAYLOAD_FIXED_SIZE <= mSegmentSize) {
+			int payloadLength = buffer.getInt(position);
+			if (payloadLength < PAYLOAD_FIXED_SIZE
+					|| position + RECORD_HEADER_SIZE + payloadLength > mSegmentSize) {
+				break;
+			}
+			if (payload.length < payloadLength) {
+				payload = new byte[payloadLength];
+			}
+			ByteBuffer source = buffer.duplicate();
+			source.position(position + RECORD_HEADER_SIZE);
+			source.get(payload, 0, payloadLength);
+			crc.reset();
+			crc.update(payload, 0, payloadLength);
+			if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+				break;
+			}
+			segment.mLastSeq = buffer.getLong(position + RECORD_HEADER_SIZE);
+			segment.mRecordCount++;
+			position += RECORD_HEADER_SIZE + payloadLength;
+		}
+		segment.mWritePosition = position;
+	}
+
+	private int countRecords(Segment segment, int endOffset) {
+		int count = 0;
+		int offset = 0;
+		while (segment != null && offset < endOffset) {
+			offset += RECORD_HEADER_SIZE + segment.mBuffer.getInt(offset);
+			count++;
+		}
+		return count;
+	}
+
+	private Record decode(ByteBuffer buffer, int offset, int payloadLength) {
+		ByteBuffer source = buffer.duplicate();
+		source.position(offset);
+		source.limit(offset + payloadLength);
+		long seq = source.getLong();
+		long hitTime = source.getLong();
+		long appId = source.getLong();
+		byte[] url = new byte[source.getInt()];
+		source.get(url);
+		byte[] hit = new byte[source.getInt()];
+		source.get(hit);
+		return new Record(seq, hitTime, appId, fromUtf8(url), fromUtf8(hit));
+	}
+
+	private static byte[] toUtf8(String value) {
+		try {
+			return value.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private static String fromUtf8(byte[] bytes) {
+		try {
+			return new String(bytes, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private Segment openSegment(long baseSeq, boolean create) throws IOException {
+		File file = new File(mDirectory, String.format("%020d%s", baseSeq, SEGMENT_SUFFIX));
+		if (!create && !file.exists()) {
+			throw new FileNotFoundException(file.getPath());
+		}
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(mSegmentSize);
+			MappedByteBuffer buffer = raf.getChannel().map(
+					FileChannel.MapMode.READ_WRITE, 0, mSegmentSize);
+			return new Segment(file, buffer);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private void deleteSegment(Segment segment) {
+		segment.mFile.delete();
+	}
+
+	private void writeCursor() throws IOException {
+		mCursorFile.seek(0);
+		mCursorFile.writeLong(mAcknowledgedSeq);
+	}
+
+	static class Summary {
+		int mNumRecords;
+		// UTF-8 bytes of the hit urls and hit strings.
+		long mNumBytes;
+		long mOldestHitTime;
+		long mNewestHitTime;
+	}
+
+	private static class Segment {
+		final File mFile;
+		final MappedByteBuffer mBuffer;
+		int mWritePosition;
+		int mRecordCount;
+		long mLastSeq;
+		boolean mDirty;
+
+		Segment(File file, MappedByteBuffer buffer) {
+			mFile = file;
+			mBuffer = buffer;
+		}
+	}
+}
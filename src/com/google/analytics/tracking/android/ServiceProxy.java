@@ -13,4 +13,8 @@ abstract interface ServiceProxy {
 	public abstract void dispatch();
 
 	public abstract void createService();
+
+	public abstract void deferService();
+
+	public abstract long getFirstHitPersistedTime();
 }
\ No newline at end of file
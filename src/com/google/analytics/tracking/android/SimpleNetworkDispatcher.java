@@ -2,19 +2,19 @@ package com.google.analytics.tracking.android;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 
 import org.apache.http.Header;
+import org.apache.http.HttpEntity;
 import org.apache.http.HttpEntityEnclosingRequest;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.HttpClient;
-import org.apache.http.entity.StringEntity;
 import org.apache.http.message.BasicHttpEntityEnclosingRequest;
 
 import android.content.Context;
@@ -25,9 +25,20 @@ import android.text.TextUtils;
 
 class SimpleNetworkDispatcher implements Dispatcher {
 	private static final String USER_AGENT_TEMPLATE = "%s/%s (Linux; U; Android %s; %s; %s Build/%s)";
+	private static final String COLLECT_PATH = "/collect";
+	private static final String BATCH_PATH = "/batch";
+	private static final int BATCH_SENT = 0;
+	private static final int BATCH_REJECTED = 1;
+	private static final int BATCH_FAILED = 2;
 	private final String userAgent;
 	private final HttpClientFactory httpClientFactory;
 	private final Context ctx;
+	private final HitEncoder encoder = new HitEncoder();
+	private int maxBatchBytes;
+	private boolean batchingRejected;
+	private int requestsSentInCycle;
+	private int lastCycleRequests;
+	private int lastCycleConnectionsOpened;
 
 	SimpleNetworkDispatcher(AnalyticsStore store,
 			HttpClientFactory httpClientFactory, Context ctx) {
@@ -55,76 +66,254 @@ class SimpleNetworkDispatcher implements Dispatcher {
 		return true;
 	}
 
-	public int dispatchHits(List<Hit> hits) {
-		int hitsDispatched = 0;
-
-		int maxHits = Math.min(hits.size(), AnalyticsConstants.MAX_REQUESTS_PER_DISPATCH);
-		for (int i = 0; i < maxHits; i++) {
-			HttpClient client = this.httpClientFactory.newInstance();
-			Hit hit = (Hit) hits.get(i);
-			URL url = getUrl(hit);
+	public List<Hit> dispatchHits(List<Hit> hits) {
+		int connectionsOpenedBefore = getPooledConnectionsOpened();
+		requestsSentInCycle = 0;
+		try {
+			return sendHits(hits);
+		} finally {
+			endDispatchCycle(connectionsOpenedBefore);
+		}
+	}
 
-			if (url == null) {
-				if (Log.isDebugEnabled())
-					Log.w("No destination: discarding hit: " + hit.getHitParams());
-				else {
-					Log.w("No destination: discarding hit.");
-				}
-				hitsDispatched++;
-			} else {
-				HttpHost targetHost = new HttpHost(url.getHost(), url.getPort(), url.getProtocol());
-
-				String path = url.getPath();
-
-				String params = TextUtils.isEmpty(hit.getHitParams()) ? "" : HitBuilder.postProcessHit(hit, System.currentTimeMillis());
-
-				HttpEntityEnclosingRequest request = buildRequest(params, path);
-				if (request == null) {
-					hitsDispatched++;
-				} else {
-					request.addHeader("Host", targetHost.toHostString());
-					logDebugInformation(Log.isDebugEnabled(), request);
-					if (params.length() > AnalyticsConstants.MAX_POST_LENGTH) {						
-						Log.w("Hit too long (> 8192 bytes)--not sent");
-					} else {
-						try {
-							HttpResponse response = client.execute(targetHost, request);
-							if (response.getStatusLine().getStatusCode() != 200) {
-								Log.w("Bad response: " + response.getStatusLine().getStatusCode());
-								return hitsDispatched;
-							}
-						} catch (ClientProtocolException e) {
-							Log.w("ClientProtocolException sending hit; discarding hit...");
-						} catch (IOException e) {
-							Log.w("Exception sending hit: " + e.getClass().getSimpleName());
-							Log.w(e.getMessage());
-							return hitsDispatched;
-						}
+	private List<Hit> sendHits(List<Hit> hits) {
+		List<Hit> sentHits = new ArrayList<Hit>();
+		int requestsLeft = AnalyticsConstants.MAX_REQUESTS_PER_DISPATCH;
+		int i = 0;
+		while (i < hits.size() && requestsLeft > 0) {
+			requestsLeft--;
+			if (maxBatchBytes > 0 && !batchingRejected) {
+				int batchSize = appendBatch(hits, i);
+				if (batchSize > 1) {
+					int result = sendBatch(hits.get(i));
+					if (result == BATCH_FAILED) {
+						return sentHits;
+					}
+					if (result == BATCH_SENT) {
+						sentHits.addAll(hits.subList(i, i + batchSize));
+						i += batchSize;
+						continue;
 					}
-					hitsDispatched++;
 				}
 			}
+			Hit hit = hits.get(i);
+			if (!sendHit(hit)) {
+				return sentHits;
+			}
+			sentHits.add(hit);
+			i++;
 		}
-		return hitsDispatched;
+		return sentHits;
 	}
 
-	private HttpEntityEnclosingRequest buildRequest(String params, String path) {
-		if (TextUtils.isEmpty(params)) {
+	/**
+	 * Sends a single hit. Returns false if the hit should be kept and retried
+	 * later, true if it was accepted or discarded.
+	 */
+	private boolean sendHit(Hit hit) {
+		URL url = getUrl(hit);
+
+		if (url == null) {
+			if (Log.isDebugEnabled())
+				Log.w("No destination: discarding hit: " + hit.getHitParams());
+			else {
+				Log.w("No destination: discarding hit.");
+			}
+			return true;
+		}
+		HttpHost targetHost = new HttpHost(url.getHost(), url.getPort(), url.getProtocol());
+
+		String path = url.getPath();
+
+		if (TextUtils.isEmpty(hit.getHitParams())) {
 			Log.w("Empty hit, discarding.");
-			return null;
+			return true;
+		}
+		encoder.reset();
+		appendHit(hit, System.currentTimeMillis());
+		if (encoder.length() > AnalyticsConstants.MAX_POST_LENGTH) {
+			Log.w("Hit too long (> 8192 bytes)--not sent");
+			return true;
 		}
-		String full = path + "?" + params;
+
+		HttpEntityEnclosingRequest request = buildRequest(path);
+		request.addHeader("Host", targetHost.toHostString());
+		logDebugInformation(Log.isDebugEnabled(), request);
+		HttpClient client = this.httpClientFactory.newInstance();
+		try {
+			requestsSentInCycle++;
+			HttpResponse response = client.execute(targetHost, request);
+			consumeResponse(response);
+			if (response.getStatusLine().getStatusCode() != 200) {
+				Log.w("Bad response: " + response.getStatusLine().getStatusCode());
+				return false;
+			}
+		} catch (ClientProtocolException e) {
+			Log.w("ClientProtocolException sending hit; discarding hit...");
+		} catch (IOException e) {
+			Log.w("Exception sending hit: " + e.getClass().getSimpleName());
+			Log.w(e.getMessage());
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Appends the stored hit string plus its queue time and cache buster to
+	 * the encoder. This is the same output as HitBuilder.postProcessHit,
+	 * written without building intermediate strings.
+	 */
+	private void appendHit(Hit hit, long currentTimeMillis) {
+		encoder.appendEncodedParams(hit.getHitParams());
+		if (hit.getHitTime() > 0) {
+			long queueTime = currentTimeMillis - hit.getHitTime();
+			if (queueTime >= 0) {
+				encoder.appendParam("qt", queueTime);
+			}
+		}
+		encoder.appendParam("z", hit.getHitId());
+	}
+
+	/**
+	 * Encodes hits starting at {@code start} as a newline-delimited batch
+	 * payload, stopping at the first hit that has a different destination,
+	 * would be discarded, or would push the payload over the byte limit.
+	 * Returns the number of hits encoded.
+	 */
+	private int appendBatch(List<Hit> hits, int start) {
+		String hitUrl = hits.get(start).getHitUrl();
+		if (TextUtils.isEmpty(hitUrl) || !hitUrl.endsWith(COLLECT_PATH)) {
+			return 0;
+		}
+		encoder.reset();
+		long now = System.currentTimeMillis();
+		int batchSize = 0;
+		for (int i = start; i < hits.size() && batchSize < AnalyticsConstants.MAX_HITS_PER_BATCH; i++) {
+			Hit hit = hits.get(i);
+			if (!hitUrl.equals(hit.getHitUrl()) || TextUtils.isEmpty(hit.getHitParams())) {
+				break;
+			}
+			int previousLength = encoder.length();
+			encoder.startSegment();
+			int hitStart = encoder.length();
+			appendHit(hit, now);
+			if (encoder.length() - hitStart > AnalyticsConstants.MAX_POST_LENGTH
+					|| encoder.length() > maxBatchBytes) {
+				encoder.truncate(previousLength);
+				break;
+			}
+			batchSize++;
+		}
+		return batchSize;
+	}
+
+	/**
+	 * Sends the batch payload currently held in the encoder.
+	 */
+	private int sendBatch(Hit firstHit) {
+		URL url = getUrl(firstHit);
+		if (url == null) {
+			return BATCH_REJECTED;
+		}
+		HttpHost targetHost = new HttpHost(url.getHost(), url.getPort(), url.getProtocol());
+		String path = url.getPath();
+		path = path.substring(0, path.length() - COLLECT_PATH.length()) + BATCH_PATH;
+
+		HttpEntityEnclosingRequest request = new BasicHttpEntityEnclosingRequest("POST", path);
+		request.setEntity(encoder.asEntity());
+		request.addHeader("User-Agent", this.userAgent);
+		request.addHeader("Host", targetHost.toHostString());
+		logDebugInformation(Log.isDebugEnabled(), request);
+
+		HttpClient client = this.httpClientFactory.newInstance();
+		try {
+			requestsSentInCycle++;
+			HttpResponse response = client.execute(targetHost, request);
+			consumeResponse(response);
+			int statusCode = response.getStatusLine().getStatusCode();
+			if (statusCode == 200) {
+				return BATCH_SENT;
+			}
+			if (statusCode >= 500) {
+				Log.w("Bad response: " + statusCode);
+				return BATCH_FAILED;
+			}
+			Log.w("Batch rejected (" + statusCode + "), falling back to single hits");
+		} catch (ClientProtocolException e) {
+			Log.w("ClientProtocolException sending batch, falling back to single hits");
+		} catch (IOException e) {
+			Log.w("Exception sending batch: " + e.getClass().getSimpleName());
+			Log.w(e.getMessage());
+			return BATCH_FAILED;
+		}
+		batchingRejected = true;
+		return BATCH_REJECTED;
+	}
+
+	/**
+	 * Enables newline-delimited multi-hit POSTs of up to maxBatchBytes each.
+	 * A value of 0 sends every hit in its own request.
+	 */
+	void setMaxBatchBytes(int maxBatchBytes) {
+		this.maxBatchBytes = maxBatchBytes;
+		this.batchingRejected = false;
+	}
+
+	private void consumeResponse(HttpResponse response) {
+		HttpEntity entity = response.getEntity();
+		if (entity != null) {
+			try {
+				entity.consumeContent();
+			} catch (IOException e) {
+				Log.w("Error consuming response: " + e.getMessage());
+			}
+		}
+	}
+
+	private int getPooledConnectionsOpened() {
+		if (httpClientFactory instanceof PooledHttpClientFactory) {
+			return ((PooledHttpClientFactory) httpClientFactory).getConnectionsOpened();
+		}
+		return 0;
+	}
+
+	private void endDispatchCycle(int connectionsOpenedBefore) {
+		lastCycleRequests = requestsSentInCycle;
+		if (httpClientFactory instanceof PooledHttpClientFactory) {
+			lastCycleConnectionsOpened = getPooledConnectionsOpened() - connectionsOpenedBefore;
+			((PooledHttpClientFactory) httpClientFactory).releaseIdleConnections();
+		} else {
+			lastCycleConnectionsOpened = requestsSentInCycle;
+		}
+		Log.vDebug("dispatch cycle: " + lastCycleRequests + " requests, "
+				+ lastCycleConnectionsOpened + " connections opened, "
+				+ getLastCycleConnectionsReused() + " reused");
+	}
+
+	int getLastCycleRequests() {
+		return lastCycleRequests;
+	}
+
+	int getLastCycleConnectionsOpened() {
+		return lastCycleConnectionsOpened;
+	}
+
+	int getLastCycleConnectionsReused() {
+		return Math.max(0, lastCycleRequests - lastCycleConnectionsOpened);
+	}
+
+	/**
+	 * Builds a request for the hit currently held in the encoder. Long hits
+	 * are POSTed straight from the encoder's buffer; short ones go in the
+	 * GET request line.
+	 */
+	private HttpEntityEnclosingRequest buildRequest(String path) {
 		HttpEntityEnclosingRequest request;
-		if (full.length() < AnalyticsConstants.MAX_GET_LENGTH) {
-			request = new BasicHttpEntityEnclosingRequest("GET", full);
+		if (path.length() + 1 + encoder.length() < AnalyticsConstants.MAX_GET_LENGTH) {
+			request = new BasicHttpEntityEnclosingRequest("GET", path + "?" + encoder);
 		} else {
 			request = new BasicHttpEntityEnclosingRequest("POST", path);
-			try {
-				request.setEntity(new StringEntity(params));
-			} catch (UnsupportedEncodingException e) {
-				Log.w("Encoding error, discarding hit");
-				return null;
-			}
+			request.setEntity(encoder.asEntity());
 		}
 		request.addHeader("User-Agent", this.userAgent);
 		return request;
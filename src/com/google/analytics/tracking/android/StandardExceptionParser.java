@@ -69,24 +69,40 @@ public class StandardExceptionParser implements ExceptionParser {
 	}
 
 	protected StackTraceElement getBestStackTraceElement(Throwable t) {
-		StackTraceElement[] elements = t.getStackTrace();
+		return getBestStackTraceElement(t.getStackTrace());
+	}
+
+	private StackTraceElement getBestStackTraceElement(StackTraceElement[] elements) {
 		if (elements == null || elements.length == 0) {
 			return null;
 		}
-		for (StackTraceElement e : elements) {
-			String className = e.getClassName();
+		int index = getIncludedFrameIndex(elements);
+		return elements[index < 0 ? 0 : index];
+	}
+
+	/**
+	 * Returns the index of the first frame in one of the included packages,
+	 * or -1 if there is none.
+	 */
+	int getIncludedFrameIndex(StackTraceElement[] elements) {
+		for (int i = 0; i < elements.length; i++) {
+			String className = elements[i].getClassName();
 			for (String packageName : this.includedPackages) {
 				if (className.startsWith(packageName)) {
-					return e;
+					return i;
 				}
 			}
 		}
-		return elements[0];
+		return -1;
 	}
 
 	protected String getDescription(Throwable cause, StackTraceElement element, String threadName) {
+		return getDescription(cause.getClass().getSimpleName(), element, threadName);
+	}
+
+	private String getDescription(String causeSimpleName, StackTraceElement element, String threadName) {
 		StringBuilder descriptionBuilder = new StringBuilder();
-		descriptionBuilder.append(cause.getClass().getSimpleName());
+		descriptionBuilder.append(causeSimpleName);
 		if (element != null) {
 			String[] classNameParts = element.getClassName().split("\\.");
 			String className = "unknown";
@@ -105,4 +121,25 @@ public class StandardExceptionParser implements ExceptionParser {
 	public String getDescription(String threadName, Throwable t) {
 		return getDescription(getCause(t), getBestStackTraceElement(getCause(t)), threadName);
 	}
+
+	String getDescription(String threadName, CapturedException exception) {
+		return getDescription(getSimpleName(exception.getRootCauseClassName()),
+				getBestStackTraceElement(exception.getFrames()), threadName);
+	}
+
+	/**
+	 * Matches Class.getSimpleName() for a binary class name: the part after
+	 * the last '$' or '.', without the leading digits of a local or
+	 * anonymous class, so "a.Outer$Inner" gives "Inner", "a.Outer$1Local"
+	 * gives "Local" and "a.Outer$1" gives "".
+	 */
+	private static String getSimpleName(String className) {
+		int start = Math.max(className.lastIndexOf('.'), className.lastIndexOf('$')) + 1;
+		if (start > 0 && className.charAt(start - 1) == '$') {
+			while (start < className.length() && Character.isDigit(className.charAt(start))) {
+				start++;
+			}
+		}
+		return className.substring(start);
+	}
 }
\ No newline at end of file
@@ -0,0 +1,106 @@
+package com.google.analytics.tracking.android;
+
+import java.util.List;
+
+import org.apache.http.client.HttpClient;
+import org.apache.http.impl.client.DefaultHttpClient;
+
+import android.content.Context;
+
+import com.google.android.gms.common.util.VisibleForTesting;
+
+/**
+ * The dispatcher an AnalyticsStore sends hits through, rebuilt whenever one
+ * of the dispatch settings changes. Shared by the store implementations so
+ * they wire up the network dispatcher the same way.
+ */
+class StoreDispatcher implements Dispatcher {
+	private final Context mContext;
+	private volatile Dispatcher mDispatcher;
+	private boolean mDispatch = true;
+	private PooledHttpClientFactory mPooledHttpClientFactory;
+	private int mMaxBatchBytes;
+
+	StoreDispatcher(Context ctx) {
+		mContext = ctx.getApplicationContext();
+		mDispatcher = createNetworkDispatcher();
+	}
+
+	public boolean okToDispatch() {
+		return mDispatcher.okToDispatch();
+	}
+
+	public List<Hit> dispatchHits(List<Hit> hits) {
+		return mDispatcher.dispatchHits(hits);
+	}
+
+	@VisibleForTesting
+	void setDispatcher(Dispatcher dispatcher) {
+		mDispatcher = dispatcher;
+	}
+
+	private HttpClientFactory getHttpClientFactory() {
+		if (mPooledHttpClientFactory != null) {
+			return mPooledHttpClientFactory;
+		}
+		return new HttpClientFactory() {
+			public HttpClient newInstance() {
+				return new DefaultHttpClient();
+			}
+		};
+	}
+
+	private Dispatcher createNetworkDispatcher() {
+		SimpleNetworkDispatcher dispatcher = new SimpleNetworkDispatcher(
+				getHttpClientFactory(), mContext);
+		dispatcher.setMaxBatchBytes(mMaxBatchBytes);
+		return dispatcher;
+	}
+
+	synchronized void setDispatch(boolean dispatch) {
+		mDispatch = dispatch;
+		mDispatcher = (dispatch ?
+				createNetworkDispatcher()
+				: new NoopDispatcher());
+	}
+
+	/**
+	 * Switches the network dispatcher between a fresh HttpClient per hit and a
+	 * single pooled, keep-alive client that is reused across dispatch cycles.
+	 */
+	synchronized void setConnectionReuse(boolean reuse) {
+		if (reuse == (mPooledHttpClientFactory != null)) {
+			return;
+		}
+		if (reuse) {
+			mPooledHttpClientFactory = new PooledHttpClientFactory();
+		} else {
+			mPooledHttpClientFactory.shutdown();
+			mPooledHttpClientFactory = null;
+		}
+		setDispatch(mDispatch);
+	}
+
+	/**
+	 * Packs up to maxBatchBytes of hits into each request when positive. Hits
+	 * are sent one per request when 0.
+	 */
+	synchronized void setMaxBatchBytes(int maxBatchBytes) {
+		mMaxBatchBytes = Math.max(0,
+				Math.min(maxBatchBytes, AnalyticsConstants.MAX_BATCH_POST_LENGTH));
+		setDispatch(mDispatch);
+	}
+
+	synchronized int getMaxBatchBytes() {
+		return mMaxBatchBytes;
+	}
+
+	/**
+	 * Closes the pooled connections, if any.
+	 */
+	synchronized void shutdown() {
+		if (mPooledHttpClientFactory != null) {
+			mPooledHttpClientFactory.shutdown();
+		}
+	}
+}
@@ -0,0 +1,108 @@
+package com.google.analytics.tracking.android;
+
+import java.util.Collections;
+import java.util.Map;
+
+import com.google.analytics.tracking.android.GAServiceManager.HitPriority;
+
+/**
+ * Snapshot of the local hit store, as returned by
+ * {@link GAServiceManager#getStoreStats()}. Times are in milliseconds since
+ * the epoch, and 0 means there is no such hit or dispatch.
+ */
+public final class StoreStats {
+	private final StoredHitCounts mCounts;
+	private final long mOldestHitTime;
+	private final long mNewestHitTime;
+	private final long[] mOldestHitTimeByPriority;
+	private final long[] mNumHitsEvicted;
+	private final long mNumStaleHitsDeleted;
+	private final long mLastDispatchTime;
+	private final int mLastDispatchNumHits;
+	private final int mLastDispatchNumSent;
+
+	StoreStats(StoredHitCounts counts, long oldestHitTime, long newestHitTime,
+			long[] oldestHitTimeByPriority, long[] numHitsEvicted, long numStaleHitsDeleted,
+			long lastDispatchTime, int lastDispatchNumHits, int lastDispatchNumSent) {
+		mCounts = new StoredHitCounts(counts);
+		mOldestHitTime = oldestHitTime;
+		mNewestHitTime = newestHitTime;
+		mOldestHitTimeByPriority = oldestHitTimeByPriority.clone();
+		mNumHitsEvicted = numHitsEvicted.clone();
+		mNumStaleHitsDeleted = numStaleHitsDeleted;
+		mLastDispatchTime = lastDispatchTime;
+		mLastDispatchNumHits = lastDispatchNumHits;
+		mLastDispatchNumSent = lastDispatchNumSent;
+	}
+
+	public int getNumHits() {
+		return mCounts.getNumHits();
+	}
+
+	/**
+	 * Returns the approximate size of the stored hit data in bytes.
+	 */
+	public long getNumBytes() {
+		return mCounts.getNumBytes();
+	}
+
+	public long getOldestHitTime() {
+		return mOldestHitTime;
+	}
+
+	public long getNewestHitTime() {
+		return mNewestHitTime;
+	}
+
+	/**
+	 * Returns the number of stored hits for each hit type, such as "appview"
+	 * or "event".
+	 */
+	public Map<String, Integer> getNumHitsByHitType() {
+		return Collections.unmodifiableMap(mCounts.getNumHitsByHitType());
+	}
+
+	public Map<String, Integer> getNumHitsByTrackingId() {
+		return Collections.unmodifiableMap(mCounts.getNumHitsByTrackingId());
+	}
+
+	/**
+	 * Returns the backlog of the dispatch lane for the given priority.
+	 */
+	public int getNumHitsPending(HitPriority priority) {
+		return mCounts.getNumHits(priority);
+	}
+
+	public long getOldestPendingHitTime(HitPriority priority) {
+		return mOldestHitTimeByPriority[priority.ordinal()];
+	}
+
+	public long getNumHitsEvicted(HitPriority priority) {
+		return mNumHitsEvicted[priority.ordinal()];
+	}
+
+	public long getNumStaleHitsDeleted() {
+		return mNumStaleHitsDeleted;
+	}
+
+	public long getLastDispatchTime() {
+		return mLastDispatchTime;
+	}
+
+	/**
+	 * Returns the number of hits the last dispatch tried to send.
+	 */
+	public int getLastDispatchNumHits() {
+		return mLastDispatchNumHits;
+	}
+
+	public int getLastDispatchNumSent() {
+		return mLastDispatchNumSent;
+	}
+
+	public String toString() {
+		return "StoreStats{hits=" + getNumHits() + ", bytes=" + getNumBytes()
+				+ ", byHitType=" + getNumHitsByHitType()
+				+ ", lastDispatchSent=" + mLastDispatchNumSent + "/" + mLastDispatchNumHits + "}";
+	}
+}
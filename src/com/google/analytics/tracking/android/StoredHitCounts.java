@@ -0,0 +1,96 @@
+package com.google.analytics.tracking.android;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.google.analytics.tracking.android.GAServiceManager.HitPriority;
+
+/**
+ * Running totals of the hits in a store, broken down by hit type, tracking id
+ * and priority. Hits stored without a hit type or tracking id are counted in
+ * the totals but not in those breakdowns. Not thread safe.
+ */
+class StoredHitCounts {
+	private int mNumHits;
+	private long mNumBytes;
+	private final int[] mNumHitsByPriority = new int[HitPriority.values().length];
+	private final Map<String, Integer> mNumHitsByHitType = new HashMap<String, Integer>();
+	private final Map<String, Integer> mNumHitsByTrackingId = new HashMap<String, Integer>();
+
+	StoredHitCounts() {
+	}
+
+	StoredHitCounts(StoredHitCounts other) {
+		mNumHits = other.mNumHits;
+		mNumBytes = other.mNumBytes;
+		System.arraycopy(other.mNumHitsByPriority, 0, mNumHitsByPriority, 0,
+				mNumHitsByPriority.length);
+		mNumHitsByHitType.putAll(other.mNumHitsByHitType);
+		mNumHitsByTrackingId.putAll(other.mNumHitsByTrackingId);
+	}
+
+	/**
+	 * Adds numHits hits of the given kind, or removes them if numHits is
+	 * negative.
+	 */
+	void add(String hitType, String trackingId, int priority, int numHits, long numBytes) {
+		mNumHits = Math.max(0, mNumHits + numHits);
+		mNumBytes = Math.max(0, mNumBytes + numBytes);
+		if (priority >= 0 && priority < mNumHitsByPriority.length) {
+			mNumHitsByPriority[priority] = Math.max(0, mNumHitsByPriority[priority] + numHits);
+		}
+		addTo(mNumHitsByHitType, hitType, numHits);
+		addTo(mNumHitsByTrackingId, trackingId, numHits);
+	}
+
+	void subtract(StoredHitCounts other) {
+		mNumHits = Math.max(0, mNumHits - other.mNumHits);
+		mNumBytes = Math.max(0, mNumBytes - other.mNumBytes);
+		for (int i = 0; i < mNumHitsByPriority.length; i++) {
+			mNumHitsByPriority[i] = Math.max(0, mNumHitsByPriority[i] - other.mNumHitsByPriority[i]);
+		}
+		for (Map.Entry<String, Integer> entry : other.mNumHitsByHitType.entrySet()) {
+			addTo(mNumHitsByHitType, entry.getKey(), -entry.getValue().intValue());
+		}
+		for (Map.Entry<String, Integer> entry : other.mNumHitsByTrackingId.entrySet()) {
+			addTo(mNumHitsByTrackingId, entry.getKey(), -entry.getValue().intValue());
+		}
+	}
+
+	private static void addTo(Map<String, Integer> counts, String key, int delta) {
+		if (key == null) {
+			return;
+		}
+		Integer count = counts.get(key);
+		int newCount = (count == null ? 0 : count.intValue()) + delta;
+		if (newCount > 0) {
+			counts.put(key, Integer.valueOf(newCount));
+		} else {
+			counts.remove(key);
+		}
+	}
+
+	int getNumHits() {
+		return mNumHits;
+	}
+
+	/**
+	 * Returns the number of bytes of URL and hit data held in the hit rows.
+	 * Shared parameter sets and SQLite overhead are not included.
+	 */
+	long getNumBytes() {
+		return mNumBytes;
+	}
+
+	int getNumHits(HitPriority priority) {
+		return mNumHitsByPriority[priority.ordinal()];
+	}
+
+	Map<String, Integer> getNumHitsByHitType() {
+		return mNumHitsByHitType;
+	}
+
+	Map<String, Integer> getNumHitsByTrackingId() {
+		return mNumHitsByTrackingId;
+	}
+}
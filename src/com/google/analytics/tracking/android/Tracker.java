@@ -2,17 +2,19 @@ package com.google.analytics.tracking.android;
 
 import android.text.TextUtils;
 import com.google.android.gms.common.util.VisibleForTesting;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
-import java.text.DecimalFormat;
-import java.text.DecimalFormatSymbols;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Locale;
+import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class Tracker {
-	private static final DecimalFormat DF = new DecimalFormat("0.######", new DecimalFormatSymbols(Locale.US));
 	private final TrackerHandler mHandler;
 	private final SimpleModel mModel;
 	private volatile ExceptionParser mExceptionParser;
@@ -20,9 +22,11 @@ public class Tracker {
 	private volatile boolean mIsTrackingStarted = false;
 	static final long TIME_PER_TOKEN_MILLIS = 2000;
 	static final long MAX_TOKENS = 120000;
-	private long mTokens = 120000;
-	private long mLastTrackTime;
+	// Time at which the token bucket is full again; see tokensAvailable().
+	private final AtomicLong mTokensFullTime = new AtomicLong();
 	private boolean mIsThrottlingEnabled = true;
+	// Mirrors the "sampleRate" field so hits can be sampled out before they are built.
+	private volatile double mSampleRate = 100;
 
 	Tracker() {
 		this.mHandler = null;
@@ -94,6 +98,9 @@ public class Tracker {
 		if (TextUtils.isEmpty(this.mModel.get("description"))) {
 			throw new IllegalStateException("trackView requires a appScreen to be set");
 		}
+		if (isHitSuppressed(null)) {
+			return;
+		}
 		GAUsage.getInstance().setUsage(GAUsage.Field.TRACK_VIEW);
 		internalSend("appview", null);
 	}
@@ -108,8 +115,11 @@ public class Tracker {
 		if (TextUtils.isEmpty(appScreen)) {
 			throw new IllegalStateException("trackView requires a appScreen to be set");
 		}
-		GAUsage.getInstance().setUsage(GAUsage.Field.TRACK_VIEW_WITH_APPSCREEN);
 		this.mModel.set("description", appScreen);
+		if (isHitSuppressed(null)) {
+			return;
+		}
+		GAUsage.getInstance().setUsage(GAUsage.Field.TRACK_VIEW_WITH_APPSCREEN);
 		internalSend("appview", null);
 	}
 
@@ -120,9 +130,17 @@ public class Tracker {
 
 	public void sendEvent(String category, String action, String label, Long value) {
 		assertTrackerOpen();
+		if (isHitSuppressed(null)) {
+			return;
+		}
 		GAUsage.getInstance().setUsage(GAUsage.Field.TRACK_EVENT);
 		GAUsage.getInstance().setDisableUsage(true);
-		internalSend("event", constructEvent(category, action, label, value));
+		HitBuilders.EventBuilder event = new HitBuilders.EventBuilder(category, action)
+				.setLabel(label);
+		if (value != null) {
+			event.setValue(value.longValue());
+		}
+		internalSend(event);
 		GAUsage.getInstance().setDisableUsage(false);
 	}
 
@@ -133,12 +151,23 @@ public class Tracker {
 
 	public void sendTransaction(Transaction transaction) {
 		assertTrackerOpen();
+		if (isHitSuppressed(null)) {
+			return;
+		}
 		GAUsage.getInstance().setUsage(GAUsage.Field.TRACK_TRANSACTION);
 		GAUsage.getInstance().setDisableUsage(true);
-		internalSend("tran", constructTransaction(transaction));
+		internalSend(new HitBuilders.TransactionBuilder(transaction.getTransactionId(),
+				transaction.getTotalCostInMicros())
+				.setAffiliation(transaction.getAffiliation())
+				.setShippingCostInMicros(transaction.getShippingCostInMicros())
+				.setTotalTaxInMicros(transaction.getTotalTaxInMicros())
+				.setCurrencyCode(transaction.getCurrencyCode()));
 
 		for (Transaction.Item item : transaction.getItems()) {
-			internalSend("item", constructItem(item, transaction));
+			internalSend(new HitBuilders.ItemBuilder(transaction.getTransactionId(),
+					item.getSKU(), item.getName(), item.getPriceInMicros(), item.getQuantity())
+					.setCategory(item.getCategory())
+					.setCurrencyCode(transaction.getCurrencyCode()));
 		}
 		GAUsage.getInstance().setDisableUsage(false);
 	}
@@ -150,9 +179,12 @@ public class Tracker {
 
 	public void sendException(String description, boolean fatal) {
 		assertTrackerOpen();
+		if (isHitSuppressed(null)) {
+			return;
+		}
 		GAUsage.getInstance().setUsage(GAUsage.Field.TRACK_EXCEPTION_WITH_DESCRIPTION);
 		GAUsage.getInstance().setDisableUsage(true);
-		internalSend("exception", constructException(description, fatal));
+		internalSend(new HitBuilders.ExceptionBuilder(description, fatal));
 		GAUsage.getInstance().setDisableUsage(false);
 	}
 
@@ -163,7 +195,9 @@ public class Tracker {
 
 	public void sendException(String threadName, Throwable exception, boolean fatal) {
 		assertTrackerOpen();
-
+		if (isHitSuppressed(null)) {
+			return;
+		}
 		GAUsage.getInstance().setUsage(GAUsage.Field.TRACK_EXCEPTION_WITH_THROWABLE);
 		String description;
 		if (this.mExceptionParser != null)
@@ -191,9 +225,14 @@ public class Tracker {
 
 	public void sendTiming(String category, long intervalInMilliseconds, String name, String label) {
 		assertTrackerOpen();
+		if (isHitSuppressed(null)) {
+			return;
+		}
 		GAUsage.getInstance().setUsage(GAUsage.Field.TRACK_TIMING);
 		GAUsage.getInstance().setDisableUsage(true);
-		internalSend("timing", constructTiming(category, intervalInMilliseconds, name, label));
+		internalSend(new HitBuilders.TimingBuilder(category, intervalInMilliseconds)
+				.setVariable(name)
+				.setLabel(label));
 
 		GAUsage.getInstance().setDisableUsage(false);
 	}
@@ -205,9 +244,12 @@ public class Tracker {
 
 	public void sendSocial(String network, String action, String target) {
 		assertTrackerOpen();
+		if (isHitSuppressed(null)) {
+			return;
+		}
 		GAUsage.getInstance().setUsage(GAUsage.Field.TRACK_SOCIAL);
 		GAUsage.getInstance().setDisableUsage(true);
-		internalSend("social", constructSocial(network, action, target));
+		internalSend(new HitBuilders.SocialBuilder(network, action, target));
 		GAUsage.getInstance().setDisableUsage(false);
 	}
 
@@ -218,23 +260,75 @@ public class Tracker {
 
 	public void send(String hitType, Map<String, String> params) {
 		assertTrackerOpen();
+		if (isHitSuppressed(params == null ? null : params.get("sampleRate"))) {
+			return;
+		}
 		GAUsage.getInstance().setUsage(GAUsage.Field.SEND);
 		internalSend(hitType, params);
 	}
 
-	private void internalSend(String hitType, Map<String, String> params) {
+	/**
+	 * Sends the hit built by builder. The builder cannot be used again.
+	 */
+	public void send(HitBuilders.FieldBuilder<?> builder) {
+		assertTrackerOpen();
+		if (isHitSuppressed(builder.get("sampleRate"))) {
+			builder.takeFields().recycle();
+			return;
+		}
+		GAUsage.getInstance().setUsage(GAUsage.Field.SEND);
+		internalSend(builder);
+	}
+
+	/**
+	 * Returns true if the app has opted out or this client is sampled out at
+	 * the hit's sample rate, in which case GAThread would discard the hit.
+	 * Checked before a hit is built so that suppressed hits allocate nothing;
+	 * the next-hit fields the hit would have carried are dropped as well.
+	 * Until the opt-out state and client id are loaded, hits go through and
+	 * GAThread decides.
+	 */
+	private boolean isHitSuppressed(String hitSampleRate) {
+		double sampleRate = hitSampleRate == null ? this.mSampleRate
+				: Utils.safeParseDouble(hitSampleRate);
+		if (!this.mHandler.isHitSuppressed(sampleRate)) {
+			return false;
+		}
 		this.mIsTrackingStarted = true;
-		if (params == null) {
-			params = new HashMap<String, String>();
+		this.mModel.clearNextHit();
+		return true;
+	}
+
+	private void internalSend(String hitType, Map<String, String> params) {
+		HitFields fields = HitFields.obtain();
+		if (params != null) {
+			fields.putAll(params);
 		}
-		params.put("hitType", hitType);
-		this.mModel.setAll(params, Boolean.valueOf(true));
-		if (!tokensAvailable())
-			Log.wDebug("Too many hits sent too quickly, throttling invoked.");
-		else {
-			this.mHandler.sendHit(this.mModel.getKeysAndValues());
+		internalSend(hitType, fields);
+	}
+
+	private void internalSend(HitBuilders.FieldBuilder<?> builder) {
+		internalSend(builder.getHitType(), builder.takeFields());
+	}
+
+	/**
+	 * Sends a hit and recycles fields. The handler copies the hit before
+	 * sendHit returns, so fields can be reused by the next hit sent on this
+	 * thread.
+	 */
+	private void internalSend(String hitType, HitFields fields) {
+		try {
+			this.mIsTrackingStarted = true;
+			fields.set(HitFields.HIT_TYPE, hitType);
+			Map<String, String> hit = this.mModel.takeHit(fields);
+			if (!tokensAvailable())
+				Log.wDebug("Too many hits sent too quickly, throttling invoked.");
+			else {
+				this.mHandler.sendHit(hit);
+			}
+		} finally {
+			fields.recycle();
 		}
-		this.mModel.clearTemporaryValues();
 	}
 
 	public String get(String key) {
@@ -244,6 +338,9 @@ public class Tracker {
 
 	public void set(String key, String value) {
 		GAUsage.getInstance().setUsage(GAUsage.Field.SET);
+		if ("sampleRate".equals(key)) {
+			this.mSampleRate = value == null ? 100 : Utils.safeParseDouble(value);
+		}
 		this.mModel.set(key, value);
 	}
 
@@ -264,6 +361,7 @@ public class Tracker {
 
 	public void setSampleRate(double sampleRate) {
 		GAUsage.getInstance().setUsage(GAUsage.Field.SET_SAMPLE_RATE);
+		this.mSampleRate = sampleRate;
 		this.mModel.set("sampleRate", Double.toString(sampleRate));
 	}
 
@@ -370,7 +468,7 @@ public class Tracker {
 	}
 
 	private static String microsToCurrencyString(long currencyInMicros) {
-		return DF.format(currencyInMicros / 1000000.0D);
+		return HitBuilders.microsToCurrencyString(currencyInMicros);
 	}
 
 	public Map<String, String> constructTransaction(Transaction trans) {
@@ -387,20 +485,6 @@ public class Tracker {
 		return params;
 	}
 
-	private Map<String, String> constructItem(Transaction.Item item, Transaction trans) {
-		Map<String, String> params = new HashMap<String, String>();
-
-		params.put("transactionId", trans.getTransactionId());
-		params.put("currencyCode", trans.getCurrencyCode());
-		params.put("itemCode", item.getSKU());
-		params.put("itemName", item.getName());
-		params.put("itemCategory", item.getCategory());
-		params.put("itemPrice", microsToCurrencyString(item.getPriceInMicros()));
-		params.put("itemQuantity", Long.toString(item.getQuantity()));
-		GAUsage.getInstance().setUsage(GAUsage.Field.CONSTRUCT_ITEM);
-		return params;
-	}
-
 	public Map<String, String> constructException(String exceptionDescription, boolean fatal) {
 		Map<String, String> params = new HashMap<String, String>();
 
@@ -413,11 +497,8 @@ public class Tracker {
 	public Map<String, String> constructRawException(String threadName,
 			Throwable exception, boolean fatal) throws IOException {
 		Map<String, String> params = new HashMap<String, String>();
-		ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-		ObjectOutputStream stream = new ObjectOutputStream(byteStream);
-		stream.writeObject(exception);
-		stream.close();
-		params.put("rawException", Utils.hexEncode(byteStream.toByteArray()));
+		params.put("capturedException", CapturedException.encode(exception,
+				this.mHandler == null ? null : this.mHandler.getExceptionParser()));
 
 		if (threadName != null) {
 			params.put("exceptionThreadName", threadName);
@@ -450,35 +531,37 @@ public class Tracker {
 		return params;
 	}
 
+	/**
+	 * Sets the bucket to hold the given number of tokens at timeMillis.
+	 */
 	@VisibleForTesting
-	void setLastTrackTime(long lastTrackTime) {
-		this.mLastTrackTime = lastTrackTime;
-	}
-
-	@VisibleForTesting
-	void setTokens(long tokens) {
-		this.mTokens = tokens;
+	void setTokens(long tokens, long timeMillis) {
+		this.mTokensFullTime.set(timeMillis + MAX_TOKENS - tokens);
 	}
 
+	/**
+	 * Token bucket holding up to MAX_TOKENS tokens, refilled at one token per
+	 * millisecond, where each hit costs TIME_PER_TOKEN_MILLIS. The bucket is
+	 * kept as the single time at which it will be full again, so concurrent
+	 * senders update it with one compare-and-set instead of a lock.
+	 */
 	@VisibleForTesting
-	synchronized boolean tokensAvailable() {
+	boolean tokensAvailable() {
 		if (!this.mIsThrottlingEnabled) {
 			return true;
 		}
 		long timeNow = System.currentTimeMillis();
-		if (this.mTokens < MAX_TOKENS) {
-			long timeElapsed = timeNow - this.mLastTrackTime;
-			if (timeElapsed > 0) {
-				this.mTokens = Math.min(MAX_TOKENS, this.mTokens + timeElapsed);
+		while (true) {
+			long fullTime = this.mTokensFullTime.get();
+			long newFullTime = Math.max(fullTime, timeNow) + TIME_PER_TOKEN_MILLIS;
+			if (newFullTime - timeNow > MAX_TOKENS) {
+				Log.wDebug("Excessive tracking detected.  Tracking call ignored.");
+				return false;
+			}
+			if (this.mTokensFullTime.compareAndSet(fullTime, newFullTime)) {
+				return true;
 			}
 		}
-		this.mLastTrackTime = timeNow;
-		if (this.mTokens >= TIME_PER_TOKEN_MILLIS) {
-			this.mTokens -= TIME_PER_TOKEN_MILLIS;
-			return true;
-		}
-		Log.wDebug("Excessive tracking detected.  Tracking call ignored.");
-		return false;
 	}
 
 	@VisibleForTesting
@@ -486,42 +569,162 @@ public class Tracker {
 		this.mIsThrottlingEnabled = throttlingEnabled;
 	}
 
+	/**
+	 * Tracker fields. Permanent fields and fields for the next hit are each
+	 * held in a map that is never modified once published; updates swap in a
+	 * modified copy. Sending a hit takes the next-hit fields and layers the
+	 * hit's own fields over the permanent ones without copying them, so
+	 * senders on different threads never block each other.
+	 */
 	private static class SimpleModel {
-		private Map<String, String> temporaryMap = new HashMap<String, String>();
-		private Map<String, String> permanentMap = new HashMap<String, String>();
+		private static final Map<String, String> NO_FIELDS = Collections.emptyMap();
+		private final AtomicReference<Map<String, String>> nextHitMap =
+				new AtomicReference<Map<String, String>>(NO_FIELDS);
+		private final AtomicReference<Map<String, String>> permanentMap =
+				new AtomicReference<Map<String, String>>(NO_FIELDS);
+
+		public void setForNextHit(String key, String value) {
+			put(this.nextHitMap, key, value);
+		}
 
-		public synchronized void setForNextHit(String key, String value) {
-			this.temporaryMap.put(key, value);
+		public void set(String key, String value) {
+			put(this.permanentMap, key, value);
 		}
 
-		public synchronized void set(String key, String value) {
-			this.permanentMap.put(key, value);
+		private static void put(AtomicReference<Map<String, String>> fields,
+				String key, String value) {
+			while (true) {
+				Map<String, String> current = fields.get();
+				Map<String, String> updated = new HashMap<String, String>(current);
+				updated.put(key, value);
+				if (fields.compareAndSet(current, updated)) {
+					return;
+				}
+			}
 		}
 
-		public synchronized void clearTemporaryValues() {
-			this.temporaryMap.clear();
+		public void clearNextHit() {
+			this.nextHitMap.set(NO_FIELDS);
 		}
 
-		public synchronized String get(String key) {
-			String result = (String) this.temporaryMap.get(key);
+		public String get(String key) {
+			String result = this.nextHitMap.get().get(key);
 			if (result != null) {
 				return result;
 			}
-			return (String) this.permanentMap.get(key);
+			return this.permanentMap.get().get(key);
+		}
+
+		/**
+		 * Returns the fields for a hit: hitFields, then the next-hit fields,
+		 * then the permanent fields. The next-hit fields are consumed.
+		 * hitFields becomes part of the returned map and must not be reused.
+		 */
+		public Map<String, String> takeHit(Map<String, String> hitFields) {
+			Map<String, String> nextHit = this.nextHitMap.getAndSet(NO_FIELDS);
+			for (Map.Entry<String, String> entry : nextHit.entrySet()) {
+				if (!hitFields.containsKey(entry.getKey())) {
+					hitFields.put(entry.getKey(), entry.getValue());
+				}
+			}
+			return new LayeredMap(hitFields, this.permanentMap.get());
+		}
+	}
+
+	/**
+	 * Map whose entries come from an overlay map and then from a base map
+	 * that is never modified. Writes go to the overlay; removal is not
+	 * supported.
+	 */
+	private static class LayeredMap extends AbstractMap<String, String> {
+		private final Map<String, String> overlay;
+		private final Map<String, String> base;
+		private Set<Map.Entry<String, String>> entrySet;
+
+		LayeredMap(Map<String, String> overlay, Map<String, String> base) {
+			this.overlay = overlay;
+			this.base = base;
+		}
+
+		public String get(Object key) {
+			if (this.overlay.containsKey(key)) {
+				return this.overlay.get(key);
+			}
+			return this.base.get(key);
+		}
+
+		public boolean containsKey(Object key) {
+			return this.overlay.containsKey(key) || this.base.containsKey(key);
+		}
+
+		public String put(String key, String value) {
+			String previous = get(key);
+			this.overlay.put(key, value);
+			return previous;
+		}
+
+		public int size() {
+			int size = this.overlay.size();
+			for (String key : this.base.keySet()) {
+				if (!this.overlay.containsKey(key)) {
+					size++;
+				}
+			}
+			return size;
 		}
 
-		public synchronized void setAll(Map<String, String> keysAndValues, Boolean isForNextHit) {
-			if (isForNextHit.booleanValue()) {				
-				this.temporaryMap.putAll(keysAndValues);
-			} else {				
-				this.permanentMap.putAll(keysAndValues);
+		public Set<Map.Entry<String, String>> entrySet() {
+			if (this.entrySet == null) {
+				this.entrySet = new AbstractSet<Map.Entry<String, String>>() {
+					public Iterator<Map.Entry<String, String>> iterator() {
+						return new LayeredIterator();
+					}
+
+					public int size() {
+						return LayeredMap.this.size();
+					}
+				};
 			}
+			return this.entrySet;
 		}
 
-		public synchronized Map<String, String> getKeysAndValues() {
-			Map<String, String> result = new HashMap<String, String>(this.permanentMap);
-			result.putAll(this.temporaryMap);
-			return result;
+		private class LayeredIterator implements Iterator<Map.Entry<String, String>> {
+			private final Iterator<Map.Entry<String, String>> overlayEntries =
+					overlay.entrySet().iterator();
+			private final Iterator<Map.Entry<String, String>> baseEntries =
+					base.entrySet().iterator();
+			private Map.Entry<String, String> next;
+
+			public boolean hasNext() {
+				if (this.next != null) {
+					return true;
+				}
+				if (this.overlayEntries.hasNext()) {
+					this.next = this.overlayEntries.next();
+					return true;
+				}
+				while (this.baseEntries.hasNext()) {
+					Map.Entry<String, String> entry = this.baseEntries.next();
+					if (!overlay.containsKey(entry.getKey())) {
+						this.next = entry;
+						return true;
+					}
+				}
+				return false;
+			}
+
+			public Map.Entry<String, String> next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				Map.Entry<String, String> entry = this.next;
+				this.next = null;
+				return entry;
+			}
+
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
 		}
 	}
 }
\ No newline at end of file
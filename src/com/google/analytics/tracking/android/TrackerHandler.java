@@ -6,4 +6,8 @@ abstract interface TrackerHandler {
 	public abstract void closeTracker(Tracker tracker);
 
 	public abstract void sendHit(Map<String, String> hits);
+
+	public abstract boolean isHitSuppressed(double sampleRate);
+
+	public abstract StandardExceptionParser getExceptionParser();
 }
\ No newline at end of file
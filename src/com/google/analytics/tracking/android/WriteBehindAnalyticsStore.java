@@ -0,0 +1,360 @@
+package com.google.analytics.tracking.android;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import com.google.analytics.tracking.android.GAServiceManager.HitPriority;
+import com.google.android.gms.analytics.internal.Command;
+import com.google.android.gms.common.util.VisibleForTesting;
+
+/**
+ * Holds hits in a bounded in-memory buffer in front of another
+ * AnalyticsStore. Buffered hits are written to the underlying store when the
+ * buffer is full, when the oldest has waited too long, when the app goes to
+ * the background or when the store is closed. If the underlying store is
+ * empty, dispatch sends buffered hits straight from memory and only writes
+ * the ones that could not be sent.
+ */
+class WriteBehindAnalyticsStore implements AnalyticsStore, AnalyticsStoreStateListener {
+	private final AnalyticsStoreStateListener mListener;
+	private AnalyticsStore mDelegate;
+	// Guarded by this. The delegate and the listener are never called with
+	// this lock held.
+	private final List<HitParams> mBuffer = new ArrayList<HitParams>();
+	private boolean mDelegateIsEmpty;
+	private int mMaxUnflushedHits;
+	private long mMaxUnflushedMillis;
+	private int mMaxBatchBytes;
+	private long mNextHitId;
+	private Timer mTimer;
+	private TimerTask mFlushTask;
+	private Boolean mPendingStoreIsEmpty;
+	// Held while hits move between the buffer and the delegate, so a clear
+	// or dispatch cannot interleave with a flush.
+	private final Object mFlushLock = new Object();
+	private final Object mReportLock = new Object();
+	private Clock mClock;
+
+	WriteBehindAnalyticsStore(AnalyticsStoreStateListener listener,
+			int maxUnflushedHits, long maxUnflushedMillis) {
+		mListener = listener;
+		mClock = new Clock() {
+			public long currentTimeMillis() {
+				return System.currentTimeMillis();
+			}
+		};
+		mNextHitId = mClock.currentTimeMillis();
+		setBufferLimits(maxUnflushedHits, maxUnflushedMillis);
+	}
+
+	@VisibleForTesting
+	void setClock(Clock clock) {
+		mClock = clock;
+	}
+
+	/**
+	 * Sets the store that buffered hits are written to. The delegate must
+	 * have been created with this object as its AnalyticsStoreStateListener.
+	 */
+	synchronized void setDelegate(AnalyticsStore delegate) {
+		mDelegate = delegate;
+	}
+
+	/**
+	 * At most maxUnflushedHits hits are held in memory, and none for longer
+	 * than maxUnflushedMillis. A maxUnflushedMillis of 0 removes the age
+	 * limit. Buffered hits are lost if the process dies before a flush.
+	 */
+	void setBufferLimits(int maxUnflushedHits, long maxUnflushedMillis) {
+		boolean flushNow;
+		synchronized (this) {
+			mMaxUnflushedHits = Math.max(1,
+					Math.min(maxUnflushedHits, AnalyticsConstants.MAX_WRITE_BEHIND_HITS));
+			mMaxUnflushedMillis = Math.max(0, maxUnflushedMillis);
+			cancelFlushTask();
+			flushNow = scheduleFlush();
+		}
+		if (flushNow) {
+			flush();
+		}
+	}
+
+	public void setDispatch(boolean dispatch) {
+		mDelegate.setDispatch(dispatch);
+	}
+
+	public void setConnectionReuse(boolean reuse) {
+		mDelegate.setConnectionReuse(reuse);
+	}
+
+	public void setMaxBatchBytes(int maxBatchBytes) {
+		synchronized (this) {
+			mMaxBatchBytes = maxBatchBytes;
+		}
+		mDelegate.setMaxBatchBytes(maxBatchBytes);
+	}
+
+	public void setGroupCommitWindow(int maxHits, long maxMillis) {
+		mDelegate.setGroupCommitWindow(maxHits, maxMillis);
+	}
+
+	public void setCompactHitEncoding(boolean compact) {
+		mDelegate.setCompactHitEncoding(compact);
+	}
+
+	public void setEvictionQuota(HitPriority priority, int maxHits) {
+		mDelegate.setEvictionQuota(priority, maxHits);
+	}
+
+	public long getNumHitsEvicted(HitPriority priority) {
+		return mDelegate.getNumHitsEvicted(priority);
+	}
+
+	/**
+	 * Returns the underlying store's stats; hits still in the buffer are not
+	 * included.
+	 */
+	public StoreStats getStats() {
+		return mDelegate.getStats();
+	}
+
+	public void putHit(Map<String, String> wireFormatParams,
+			long hitTimeInMilliseconds, String path,
+			Collection<Command> commands)
+	{
+		boolean flushNow;
+		synchronized (this) {
+			mBuffer.add(new HitParams(wireFormatParams, hitTimeInMilliseconds, path,
+					new ArrayList<Command>(commands)));
+			flushNow = hitsBuffered();
+		}
+		if (flushNow) {
+			flush();
+		}
+		reportStoreState();
+	}
+
+	public void putHits(Collection<HitParams> hits) {
+		boolean flushNow;
+		synchronized (this) {
+			mBuffer.addAll(hits);
+			flushNow = hitsBuffered();
+		}
+		if (flushNow) {
+			flush();
+		}
+		reportStoreState();
+	}
+
+	private boolean hitsBuffered() {
+		setStoreIsEmpty(false);
+		return scheduleFlush();
+	}
+
+	/**
+	 * Returns true if the buffer is full and must be flushed now; otherwise
+	 * makes sure a flush is scheduled for when the oldest hit gets too old.
+	 * Must be called with this lock held.
+	 */
+	private boolean scheduleFlush() {
+		if (mBuffer.isEmpty()) {
+			return false;
+		}
+		if (mBuffer.size() >= mMaxUnflushedHits) {
+			return true;
+		}
+		if (mFlushTask == null && mMaxUnflushedMillis > 0) {
+			mFlushTask = new TimerTask() {
+				public void run() {
+					flush();
+				}
+			};
+			getTimer().schedule(mFlushTask, mMaxUnflushedMillis);
+		}
+		return false;
+	}
+
+	private void cancelFlushTask() {
+		if (mFlushTask != null) {
+			mFlushTask.cancel();
+			mFlushTask = null;
+		}
+	}
+
+	/**
+	 * Writes all buffered hits to the underlying store.
+	 */
+	void flush() {
+		synchronized (mFlushLock) {
+			List<HitParams> hits;
+			synchronized (this) {
+				cancelFlushTask();
+				if (mBuffer.isEmpty()) {
+					return;
+				}
+				hits = new ArrayList<HitParams>(mBuffer);
+				mBuffer.clear();
+			}
+			Log.vDebug("flushing " + hits.size() + " buffered hits");
+			mDelegate.putHits(hits);
+		}
+	}
+
+	public void clearHits(long appId) {
+		synchronized (mFlushLock) {
+			synchronized (this) {
+				if (appId == 0) {
+					mBuffer.clear();
+				} else {
+					Iterator<HitParams> iterator = mBuffer.iterator();
+					while (iterator.hasNext()) {
+						if (PersistentAnalyticsStore.getAppSystemId(
+								iterator.next().getWireFormatParams()) == appId) {
+							iterator.remove();
+						}
+					}
+				}
+			}
+			mDelegate.clearHits(appId);
+		}
+	}
+
+	public void dispatch() {
+		synchronized (mFlushLock) {
+			boolean sendFromMemory;
+			synchronized (this) {
+				sendFromMemory = !mBuffer.isEmpty() && mDelegateIsEmpty;
+			}
+			if (sendFromMemory) {
+				dispatchBufferedHits();
+			}
+			flush();
+		}
+		mDelegate.dispatch();
+	}
+
+	/**
+	 * Sends one batch straight from the buffer and drops the hits that were
+	 * sent. Must be called with mFlushLock held, so no flush can take the
+	 * hits out of the buffer while they are being sent.
+	 */
+	private void dispatchBufferedHits() {
+		List<Hit> hits = new ArrayList<Hit>();
+		List<HitParams> hitParams = new ArrayList<HitParams>();
+		synchronized (this) {
+			int maxHits = mMaxBatchBytes > 0 ?
+					AnalyticsConstants.MAX_BATCHED_HITS_PER_DISPATCH
+					: AnalyticsConstants.MAX_REQUESTS_PER_DISPATCH;
+			Iterator<HitParams> iterator = mBuffer.iterator();
+			while (iterator.hasNext() && hits.size() < maxHits) {
+				HitParams params = iterator.next();
+				PersistentAnalyticsStore.fillVersionParametersIfNecessary(
+						params.getWireFormatParams(), params.getCommands());
+				String path = params.getPath();
+				if (path == null) {
+					path = AnalyticsConstants.ANALYTICS_PATH_INSECURE;
+				}
+				if (path.length() == 0) {
+					Log.w("empty path: not sending hit");
+					iterator.remove();
+					continue;
+				}
+				Hit hit = new Hit(PersistentAnalyticsStore.generateHitString(
+						params.getWireFormatParams()), mNextHitId++,
+						params.getHitTimeInMilliseconds());
+				hit.setHitUrl(path);
+				hits.add(hit);
+				hitParams.add(params);
+			}
+		}
+		if (hits.isEmpty()) {
+			return;
+		}
+		List<Hit> sentHits = mDelegate.dispatchHits(hits);
+		Log.vDebug("sent " + sentHits.size() + " of " + hits.size() + " hits from memory");
+
+		Set<Hit> sent = new HashSet<Hit>(sentHits);
+		synchronized (this) {
+			for (int i = 0; i < hits.size(); i++) {
+				if (sent.contains(hits.get(i))) {
+					mBuffer.remove(hitParams.get(i));
+				}
+			}
+		}
+	}
+
+	public List<Hit> dispatchHits(List<Hit> hits) {
+		return mDelegate.dispatchHits(hits);
+	}
+
+	public void close() {
+		synchronized (mFlushLock) {
+			flush();
+			synchronized (this) {
+				mTimer = cancelTimer(mTimer);
+			}
+			mDelegate.close();
+		}
+	}
+
+	/**
+	 * Called by the delegate after it has released its own lock.
+	 */
+	public void reportStoreIsEmpty(boolean isEmpty) {
+		synchronized (this) {
+			mDelegateIsEmpty = isEmpty;
+			setStoreIsEmpty(isEmpty && mBuffer.isEmpty());
+		}
+		reportStoreState();
+	}
+
+	/**
+	 * Records the emptiness to report to the listener once this lock is
+	 * released. Must be called with this lock held.
+	 */
+	private void setStoreIsEmpty(boolean isEmpty) {
+		mPendingStoreIsEmpty = Boolean.valueOf(isEmpty);
+	}
+
+	/**
+	 * Passes the last recorded emptiness to the listener, which takes
+	 * GAServiceManager's lock. Must not be called with this lock held.
+	 */
+	private void reportStoreState() {
+		synchronized (mReportLock) {
+			Boolean isEmpty;
+			synchronized (this) {
+				isEmpty = mPendingStoreIsEmpty;
+				mPendingStoreIsEmpty = null;
+			}
+			if (isEmpty != null) {
+				mListener.reportStoreIsEmpty(isEmpty.booleanValue());
+			}
+		}
+	}
+
+	/**
+	 * Returns the daemon timer that runs age-limit flushes for this store.
+	 * Must be called with this lock held.
+	 */
+	private Timer getTimer() {
+		if (mTimer == null) {
+			mTimer = new Timer("Write Behind", true);
+		}
+		return mTimer;
+	}
+
+	private Timer cancelTimer(Timer timer) {
+		if (timer != null) {
+			timer.cancel();
+		}
+		return null;
+	}
+}